@@ -0,0 +1,163 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ *  Deep Zoom (DZI) view of a slide. Deep Zoom levels are powers of two
+ *  from a single pixel up to full resolution, each DZI level is read from
+ *  the best native OpenSlide level for its downsample, so levels that
+ *  coincide with native levels are served without any rescaling
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class DeepZoom {
+	public static final int TILE_SIZE = 254;
+	public static final int OVERLAP = 1;
+	public static final String FORMAT = "jpg";
+	//max number of native pixels read for a single tile, same as default image.max.pixels
+	public static final long MAX_READ_PIXELS = 16384L*16384;
+	
+	private Slide slide;
+	private long width, height;
+	private int levelCount;
+	
+	/**
+	 * create Deep Zoom view of a slide
+	 * @param slide
+	 */
+	public DeepZoom(Slide slide){
+		this.slide = slide;
+		this.width = slide.getLevelWidth(0);
+		this.height = slide.getLevelHeight(0);
+		
+		// number of levels to go from 1 pixel to full size
+		long max = Math.max(Math.max(width,height),1);
+		levelCount = 1;
+		while((1L << (levelCount-1)) < max)
+			levelCount ++;
+	}
+	
+	/**
+	 * get number of Deep Zoom levels
+	 * @return
+	 */
+	public int getLevelCount(){
+		return levelCount;
+	}
+	
+	/**
+	 * get downsample of Deep Zoom level
+	 * @param level
+	 * @return
+	 */
+	public double getDownsample(int level){
+		return (double) (1L << (levelCount - 1 - level));
+	}
+	
+	/**
+	 * get width of Deep Zoom level
+	 * @param level
+	 * @return
+	 */
+	public long getLevelWidth(int level){
+		return (long) Math.ceil(width / getDownsample(level));
+	}
+	
+	/**
+	 * get height of Deep Zoom level
+	 * @param level
+	 * @return
+	 */
+	public long getLevelHeight(int level){
+		return (long) Math.ceil(height / getDownsample(level));
+	}
+	
+	/**
+	 * get number of tile columns in Deep Zoom level
+	 * @param level
+	 * @return
+	 */
+	public int getColumnCount(int level){
+		return (int) ((getLevelWidth(level) + TILE_SIZE - 1)/TILE_SIZE);
+	}
+	
+	/**
+	 * get number of tile rows in Deep Zoom level
+	 * @param level
+	 * @return
+	 */
+	public int getRowCount(int level){
+		return (int) ((getLevelHeight(level) + TILE_SIZE - 1)/TILE_SIZE);
+	}
+	
+	/**
+	 * is tile address valid
+	 * @param level
+	 * @param col
+	 * @param row
+	 * @return
+	 */
+	public boolean isValid(int level, int col, int row){
+		return level >= 0 && level < levelCount && col >= 0 && row >= 0 && 
+			   col < getColumnCount(level) && row < getRowCount(level);
+	}
+	
+	/**
+	 * get Deep Zoom descriptor (.dzi) 
+	 * @return
+	 */
+	public String getDescriptor(){
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+			   "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\""+FORMAT+"\" "+
+			   "Overlap=\""+OVERLAP+"\" TileSize=\""+TILE_SIZE+"\">"+
+			   "<Size Width=\""+width+"\" Height=\""+height+"\"/></Image>\n";
+	}
+	
+	/**
+	 * get Deep Zoom tile
+	 * @param level
+	 * @param col
+	 * @param row
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage getTile(int level, int col, int row) throws IOException {
+		if(!isValid(level,col,row))
+			throw new IllegalArgumentException("invalid tile "+level+"/"+col+"_"+row);
+		
+		// tile bounds in level coordinates including overlap
+		long x = col*TILE_SIZE - ((col > 0)?OVERLAP:0);
+		long y = row*TILE_SIZE - ((row > 0)?OVERLAP:0);
+		int w = (int)(Math.min(getLevelWidth(level),(col+1L)*TILE_SIZE + OVERLAP) - x);
+		int h = (int)(Math.min(getLevelHeight(level),(row+1L)*TILE_SIZE + OVERLAP) - y);
+		
+		// low levels of slides with few native levels would read most of the slide
+		double ds = getDownsample(level);
+		long pixels = SlidePyramid.getReadSize(slide,ds,w,h);
+		if(pixels > MAX_READ_PIXELS)
+			throw new IOException("tile "+level+"/"+col+"_"+row+" needs "+pixels+" native pixels, max is "+MAX_READ_PIXELS);
+		return SlidePyramid.readRegion(slide,(long)(x*ds),(long)(y*ds),ds,w,h);
+	}
+}
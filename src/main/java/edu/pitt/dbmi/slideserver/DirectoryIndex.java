@@ -0,0 +1,400 @@
+package edu.pitt.dbmi.slideserver;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ *  in-memory index of the image directory tree.
+ *  The index is built in the background, kept up to date with a WatchService 
+ *  and rebuilt periodically, since file system events are not delivered for
+ *  network file systems like NFS. Listings and file lookups are answered from 
+ *  memory without touching the file system. Until the first scan is done, 
+ *  and for paths the index doesn't know about, lookups return null and the 
+ *  caller should fall back to the file system
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class DirectoryIndex {
+	public static final long DEFAULT_RESCAN_INTERVAL = 5*60*1000;
+	
+	private final File root;
+	private final long rescanInterval;
+	private volatile Entry index;
+	private volatile long lastScan, scanTime;
+	private WatchService watcher;
+	private final Map<WatchKey,String> watchKeys = new HashMap<WatchKey,String>();
+	private Thread thread;
+	
+	/**
+	 * indexed file or directory
+	 */
+	public static class Entry {
+		private static final SortedMap<String,Entry> EMPTY = Collections.unmodifiableSortedMap(new TreeMap<String,Entry>());
+		private final String name, path;
+		private final File file;
+		private final boolean directory, hidden, indexed;
+		private final long length, lastModified;
+		// directory content is replaced, never modified
+		private volatile SortedMap<String,Entry> children;
+		
+		private Entry(File file, String path){
+			this(file,path,true);
+		}
+		
+		private Entry(File file, String path, boolean indexed){
+			this.file = file;
+			this.name = file.getName();
+			this.path = path;
+			this.indexed = indexed;
+			this.directory = file.isDirectory();
+			this.hidden = file.isHidden() || name.startsWith(".");
+			this.length = (directory)?0:file.length();
+			this.lastModified = file.lastModified();
+			this.children = EMPTY;
+		}
+		public String getName() {
+			return name;
+		}
+		/**
+		 * path relative to image directory, separated by '/'
+		 * @return
+		 */
+		public String getPath() {
+			return path;
+		}
+		public File getFile() {
+			return file;
+		}
+		public boolean isDirectory() {
+			return directory;
+		}
+		/**
+		 * hidden files are not listed
+		 * @return
+		 */
+		public boolean isHidden() {
+			return hidden;
+		}
+		public long getLength() {
+			return length;
+		}
+		public long getLastModified() {
+			return lastModified;
+		}
+		/**
+		 * get directory content sorted by name, entries that are not 
+		 * in index read their content from disk on every call
+		 * @return
+		 */
+		public SortedMap<String,Entry> getChildren() {
+			if(indexed || !directory)
+				return children;
+			SortedMap<String,Entry> map = new TreeMap<String,Entry>();
+			File [] files = file.listFiles();
+			if(files != null){
+				for(File f: files)
+					map.put(f.getName(),new Entry(f,(path.length() > 0)?path+"/"+f.getName():f.getName(),false));
+			}
+			return map;
+		}
+	}
+	
+	/**
+	 * get entry for a file that is read straight from disk, 
+	 * for when there is no index or index doesn't know the file yet
+	 * @param root - image directory
+	 * @param path - path relative to image directory
+	 * @return null if file doesn't exist
+	 */
+	public static Entry load(File root, String path){
+		path = path.replace(File.separatorChar,'/').replaceAll("^/+|/+$","");
+		File file = (path.length() > 0)?new File(root,path.replace('/',File.separatorChar)):root;
+		return (file.exists())?new Entry(file,path,false):null;
+	}
+	
+	/**
+	 * create directory index and start building it in background
+	 * @param root - image directory
+	 * @param rescanInterval - how often the whole tree is rescanned in milliseconds
+	 */
+	public DirectoryIndex(File root, long rescanInterval){
+		this.root = root;
+		this.rescanInterval = (rescanInterval > 0)?rescanInterval:DEFAULT_RESCAN_INTERVAL;
+		try{
+			watcher = FileSystems.getDefault().newWatchService();
+		}catch(IOException ex){
+			// rely on periodic rescan
+			ex.printStackTrace();
+		}
+		thread = new Thread(new Runnable(){
+			public void run() {
+				update();
+			}
+		},"DirectoryIndex");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * has the first scan finished
+	 * @return
+	 */
+	public boolean isReady(){
+		return index != null;
+	}
+	
+	/**
+	 * get indexed file or directory
+	 * @param path - path relative to image directory
+	 * @return null if path is not in index
+	 */
+	public Entry get(String path){
+		Entry e = index;
+		if(e == null)
+			return null;
+		for(String name: path.replace(File.separatorChar,'/').split("/")){
+			if(name.length() == 0 || name.equals("."))
+				continue;
+			e = e.children.get(name);
+			if(e == null)
+				return null;
+		}
+		return e;
+	}
+	
+	/**
+	 * does file exist according to index
+	 * @param path - path relative to image directory
+	 * @return null if index is not ready, so it is unknown
+	 */
+	public Boolean exists(String path){
+		if(!isReady())
+			return null;
+		return get(path) != null;
+	}
+	
+	/**
+	 * does file exist according to index
+	 * @param file
+	 * @return null if index is not ready or file is outside of image directory
+	 */
+	public Boolean exists(File file){
+		String prefix = root.getAbsolutePath()+File.separator;
+		String path = file.getAbsolutePath();
+		if(!path.startsWith(prefix))
+			return null;
+		return exists(path.substring(prefix.length()));
+	}
+	
+	/**
+	 * find file, if file name contains spaces that don't match, spaces 
+	 * are treated as wildcards, since a '+' in the name could have been 
+	 * decoded as space
+	 * @param path - path relative to image directory
+	 * @return null if file is not in index
+	 */
+	public File find(String path){
+		Entry e = get(path);
+		if(e != null)
+			return e.file;
+		path = path.replace(File.separatorChar,'/');
+		int i = path.lastIndexOf('/');
+		String name = path.substring(i+1);
+		Entry parent = (i > -1)?get(path.substring(0,i)):index;
+		if(parent == null || !name.contains(" "))
+			return null;
+		try{
+			String target = name.replaceAll(" ",".");
+			for(Entry c: parent.children.values()){
+				if(c.name.matches(target))
+					return c.file;
+			}
+		}catch(PatternSyntaxException ex){
+			//NOOP: file name could not be made into regex
+		}
+		return null;
+	}
+	
+	/**
+	 * build index, then keep it up to date
+	 */
+	private void update(){
+		rescan();
+		while(!Thread.currentThread().isInterrupted()){
+			try{
+				long wait = lastScan + rescanInterval - System.currentTimeMillis();
+				WatchKey key = null;
+				if(wait > 0){
+					if(watcher != null)
+						key = watcher.poll(wait,TimeUnit.MILLISECONDS);
+					else
+						Thread.sleep(wait);
+				}
+				if(key == null)
+					rescan();
+				else
+					update(key);
+			}catch(InterruptedException ex){
+				break;
+			}catch(ClosedWatchServiceException ex){
+				break;
+			}catch(Exception ex){
+				ex.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * rescan directory that changed
+	 * @param key
+	 */
+	private void update(WatchKey key){
+		String path;
+		synchronized(watchKeys){
+			path = watchKeys.get(key);
+		}
+		if(path != null){
+			boolean rescan = false;
+			for(WatchEvent<?> event: key.pollEvents()){
+				rescan |= event.kind() == ENTRY_CREATE || event.kind() == ENTRY_DELETE || 
+						   event.kind() == ENTRY_MODIFY || event.kind() == OVERFLOW;
+			}
+			Entry dir = get(path);
+			if(rescan && dir != null && dir.directory)
+				scan(dir,false);
+		}
+		if(!key.reset()){
+			synchronized(watchKeys){
+				watchKeys.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * rebuild the whole index
+	 */
+	private void rescan(){
+		long time = System.currentTimeMillis();
+		Entry e = new Entry(root,"");
+		scan(e,true);
+		index = e;
+		lastScan = System.currentTimeMillis();
+		scanTime = lastScan - time;
+	}
+	
+	/**
+	 * scan directory content
+	 * @param dir
+	 * @param recurse - rescan subdirectories that are already in index
+	 */
+	private void scan(Entry dir, boolean recurse){
+		File [] files = dir.file.listFiles();
+		if(files == null)
+			return;
+		SortedMap<String,Entry> children = new TreeMap<String,Entry>();
+		for(File f: files){
+			String path = (dir.path.length() > 0)?dir.path+"/"+f.getName():f.getName();
+			Entry e = new Entry(f,path);
+			Entry old = dir.children.get(e.name);
+			if(e.directory){
+				if(!recurse && old != null && old.directory){
+					// keep content of known subdirectory
+					e.children = old.children;
+				}else{
+					scan(e,recurse);
+				}
+			}
+			children.put(e.name,e);
+		}
+		dir.children = children;
+		register(dir);
+	}
+	
+	/**
+	 * watch directory for changes
+	 * @param dir
+	 */
+	private void register(Entry dir){
+		if(watcher == null)
+			return;
+		try{
+			WatchKey key = dir.file.toPath().register(watcher,ENTRY_CREATE,ENTRY_DELETE,ENTRY_MODIFY);
+			synchronized(watchKeys){
+				watchKeys.put(key,dir.path);
+			}
+		}catch(IOException ex){
+			// too many watches or file system that doesn't support them, rely on rescan
+		}catch(ClosedWatchServiceException ex){
+			// index is disposed
+		}
+	}
+	
+	/**
+	 * stop updating index
+	 */
+	public void dispose(){
+		thread.interrupt();
+		if(watcher != null){
+			try{
+				watcher.close();
+			}catch(IOException ex){
+				ex.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * get index statistics
+	 * @return
+	 */
+	public Properties getStatistics(){
+		Properties p = new Properties();
+		p.setProperty("directory.index.ready",""+isReady());
+		p.setProperty("directory.index.scan.time",""+scanTime);
+		p.setProperty("directory.index.scan.last",""+lastScan);
+		p.setProperty("directory.index.rescan.interval",""+rescanInterval);
+		synchronized(watchKeys){
+			p.setProperty("directory.index.watched",""+watchKeys.size());
+		}
+		return p;
+	}
+}
@@ -0,0 +1,297 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.SortedMap;
+import java.util.regex.Pattern;
+
+/**
+ *  streams directory listing to the client as entries are visited, instead
+ *  of building the whole listing in memory. Listing can be filtered by a
+ *  glob pattern and broken into pages, either by offset or by a cursor. 
+ *  Cursor is a path of the last entry that was sent, since entries are 
+ *  always visited in name order, next page starts right after it even if 
+ *  directory content has changed in the meantime
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class DirectoryListing {
+	// how often the partial listing is pushed to the client
+	private static final int FLUSH_INTERVAL = 256;
+	
+	private final DirectoryIndex.Entry dir;
+	private final boolean recurse;
+	private Pattern glob;
+	private boolean globPath;
+	private String cursor;
+	private long offset;
+	private long limit = -1;
+	
+	/**
+	 * create listing of a directory
+	 * @param dir - directory entry
+	 * @param recurse - list all files in directory tree
+	 */
+	public DirectoryListing(DirectoryIndex.Entry dir, boolean recurse){
+		this.dir = dir;
+		this.recurse = recurse;
+	}
+	
+	/**
+	 * only list files that match a glob pattern, '*' and '?' match any characters
+	 * but '/', {a,b} matches either of alternatives. Pattern that has a '/' is
+	 * matched against path relative to listed directory, otherwise against
+	 * file name. Directories are not filtered
+	 * @param pattern - glob pattern, null lists all files
+	 */
+	public void setGlob(String pattern){
+		if(pattern == null || pattern.length() == 0){
+			glob = null;
+			return;
+		}
+		globPath = pattern.indexOf('/') > -1;
+		glob = Pattern.compile(toRegex(pattern),Pattern.CASE_INSENSITIVE);
+	}
+	
+	/**
+	 * start listing after a given entry
+	 * @param cursor - path relative to listed directory that was returned as next cursor
+	 */
+	public void setCursor(String cursor){
+		this.cursor = (cursor != null && cursor.length() > 0)?cursor:null;
+	}
+	
+	/**
+	 * skip a number of entries 
+	 * @param offset
+	 */
+	public void setOffset(long offset){
+		this.offset = Math.max(0,offset);
+	}
+	
+	/**
+	 * max number of entries to list
+	 * @param limit - negative or zero value lists all entries
+	 */
+	public void setLimit(long limit){
+		this.limit = limit;
+	}
+	
+	/**
+	 * convert glob pattern to regular expression
+	 * @param pattern
+	 * @return
+	 */
+	private static String toRegex(String pattern){
+		StringBuilder regex = new StringBuilder();
+		int group = 0;
+		for(char c: pattern.toCharArray()){
+			switch(c){
+			case '*': regex.append("[^/]*"); break;
+			case '?': regex.append("[^/]"); break;
+			case '{': regex.append("(?:"); group ++; break;
+			case '}': regex.append((group > 0)?")":"\\}"); group = Math.max(0,group-1); break;
+			case ',': regex.append((group > 0)?"|":","); break;
+			default:
+				if(Character.isLetterOrDigit(c) || c == '/')
+					regex.append(c);
+				else
+					regex.append("\\"+c);
+			}
+		}
+		while(group-- > 0)
+			regex.append(")");
+		return regex.toString();
+	}
+	
+	/**
+	 * write listing as plain text, one name per line, directory names 
+	 * end with '/', recursive listing has paths of files only
+	 * @param out
+	 * @return cursor for the next page, null if there is nothing left
+	 * @throws IOException
+	 */
+	public String writeText(Writer out) throws IOException {
+		Walker walker = new Walker();
+		long count = 0;
+		for(DirectoryIndex.Entry e; (limit <= 0 || count < limit) && (e = walker.next()) != null;){
+			out.write(((recurse)?getPath(e):e.getName())+((e.isDirectory())?"/":"")+"\n");
+			if(++count % FLUSH_INTERVAL == 0)
+				out.flush();
+		}
+		return walker.getNextCursor();
+	}
+	
+	/**
+	 * write listing as JSON object that has entries with name, path, 
+	 * type, size and modification time, followed by cursor of the next
+	 * page if listing was limited
+	 * @param out
+	 * @return cursor for the next page, null if there is nothing left
+	 * @throws IOException
+	 */
+	public String writeJSON(Writer out) throws IOException {
+		Walker walker = new Walker();
+		out.write("{\"path\":\""+escape(dir.getPath())+"\",\"offset\":"+offset+",\"entries\":[\n");
+		long count = 0;
+		for(DirectoryIndex.Entry e; (limit <= 0 || count < limit) && (e = walker.next()) != null;){
+			if(count > 0)
+				out.write(",\n");
+			out.write("{\"name\":\""+escape(e.getName())+"\",\"path\":\""+escape(getPath(e))+"\"");
+			out.write(",\"type\":\""+((e.isDirectory())?"directory":"file")+"\"");
+			out.write(",\"size\":"+e.getLength()+",\"modified\":"+e.getLastModified()+"}");
+			if(++count % FLUSH_INTERVAL == 0)
+				out.flush();
+		}
+		String next = walker.getNextCursor();
+		out.write("\n],\"count\":"+count);
+		if(next != null)
+			out.write(",\"next\":\""+escape(next)+"\"");
+		out.write("}\n");
+		return next;
+	}
+	
+	/**
+	 * get path relative to listed directory
+	 * @param e
+	 * @return
+	 */
+	private String getPath(DirectoryIndex.Entry e){
+		String prefix = dir.getPath();
+		return (prefix.length() > 0)?e.getPath().substring(prefix.length()+1):e.getPath();
+	}
+	
+	/**
+	 * does entry pass glob filter
+	 * @param e
+	 * @return
+	 */
+	private boolean accept(DirectoryIndex.Entry e){
+		if(e.isHidden())
+			return false;
+		if(glob == null || e.isDirectory())
+			return true;
+		return glob.matcher((globPath)?getPath(e):e.getName()).matches();
+	}
+	
+	/**
+	 * escape JSON string
+	 * @param str
+	 * @return
+	 */
+	private static String escape(String str){
+		StringBuilder b = new StringBuilder(str.length());
+		for(char c: str.toCharArray()){
+			if(c == '"' || c == '\\')
+				b.append('\\').append(c);
+			else if(c < 0x20)
+				b.append(String.format("\\u%04x",(int)c));
+			else
+				b.append(c);
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * visits listed entries in name order, one directory at a time
+	 */
+	private class Walker {
+		private final LinkedList<Iterator<DirectoryIndex.Entry>> stack = new LinkedList<Iterator<DirectoryIndex.Entry>>();
+		private DirectoryIndex.Entry last;
+		
+		/**
+		 * position walker after cursor and skip offset entries
+		 */
+		public Walker(){
+			if(cursor != null)
+				seek(dir,cursor.split("/"),0);
+			else
+				stack.push(dir.getChildren().values().iterator());
+			for(long i = 0; i < offset && advance() != null; i++);
+		}
+		
+		/**
+		 * descend to the entry that cursor points to, everything 
+		 * up to and including that entry is skipped
+		 * @param d - directory
+		 * @param names - cursor path
+		 * @param n - current depth in cursor path
+		 */
+		private void seek(DirectoryIndex.Entry d, String [] names, int n){
+			SortedMap<String,DirectoryIndex.Entry> children = d.getChildren();
+			// smallest name that comes after the one on cursor path
+			stack.push(children.tailMap(names[n]+"\0").values().iterator());
+			DirectoryIndex.Entry e = children.get(names[n]);
+			if(e != null && recurse && e.isDirectory() && n < names.length-1)
+				seek(e,names,n+1);
+		}
+		
+		/**
+		 * get next entry that passes filter
+		 * @return null if there are no more entries
+		 */
+		private DirectoryIndex.Entry advance(){
+			while(!stack.isEmpty()){
+				Iterator<DirectoryIndex.Entry> it = stack.peek();
+				if(!it.hasNext()){
+					stack.pop();
+					continue;
+				}
+				DirectoryIndex.Entry e = it.next();
+				if(!accept(e))
+					continue;
+				if(recurse && e.isDirectory()){
+					stack.push(e.getChildren().values().iterator());
+					continue;
+				}
+				return e;
+			}
+			return null;
+		}
+		
+		/**
+		 * get next entry and remember it as cursor
+		 * @return null if there are no more entries
+		 */
+		public DirectoryIndex.Entry next(){
+			DirectoryIndex.Entry e = advance();
+			if(e != null)
+				last = e;
+			return e;
+		}
+		
+		/**
+		 * get cursor of the last entry that was returned,
+		 * if there are any entries left after it
+		 * @return
+		 */
+		public String getNextCursor(){
+			if(last == null || advance() == null)
+				return null;
+			return getPath(last);
+		}
+	}
+}
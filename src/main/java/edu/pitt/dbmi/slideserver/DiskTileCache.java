@@ -0,0 +1,513 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ *  persistent on-disk cache of encoded image responses (tiles) that survives
+ *  server restarts. Tiles are appended to segment files, sealed segments are 
+ *  memory-mapped for lookup, and the index is rebuilt from segments on startup.
+ *  When the size cap is exceeded the oldest segment is deleted as a whole.
+ *  Keys are expected to identify the version of the source slide (path, mtime, size),
+ *  so tiles of a modified slide are never matched and age out with their segment
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class DiskTileCache {
+	public static final long DEFAULT_CAPACITY = 10L*1024*1024*1024;
+	//capacity of a store whose segments are never evicted
+	public static final long UNLIMITED = Long.MAX_VALUE;
+	private static final long SEGMENT_SIZE = 64*1024*1024;
+	private static final String SEGMENT_PREFIX = "tiles-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String LOCK_FILE = "tiles.lock";
+	private static final Set<File> locked = new HashSet<File>();
+	private static final int MAGIC = 0x54494C45;
+	private static final int MAX_KEY_SIZE = 64*1024;
+	private static final int MAX_DATA_SIZE = (int)(SEGMENT_SIZE/4);
+	
+	private final File directory;
+	private final long capacity;
+	private final Map<String,Location> index;
+	private final LinkedList<Segment> segments;
+	private File lockDirectory;
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+	private long size;
+	private long hits, misses, puts, evictions, evictedBytes, errors;
+	
+	/**
+	 * segment file, size includes space reserved by writes 
+	 * that are still in progress
+	 */
+	private static class Segment {
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		final List<String> keys;
+		MappedByteBuffer buffer;
+		long size;
+		int pending;
+		boolean closed;
+		
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file,"rw");
+			this.channel = raf.getChannel();
+			this.size = channel.size();
+			this.keys = new ArrayList<String>();
+		}
+		
+		/**
+		 * map sealed segment into memory
+		 * @throws IOException
+		 */
+		void seal() throws IOException {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+		}
+		
+		/**
+		 * read bytes at a given offset
+		 * @param offset
+		 * @param length
+		 * @return
+		 * @throws IOException
+		 */
+		byte [] read(long offset, int length) throws IOException {
+			byte [] data = new byte [length];
+			if(buffer != null){
+				ByteBuffer b = buffer.duplicate();
+				b.position((int)offset);
+				b.get(data);
+			}else{
+				ByteBuffer b = ByteBuffer.wrap(data);
+				while(b.hasRemaining()){
+					if(channel.read(b,offset+b.position()) < 0)
+						throw new IOException("unexpected end of segment "+file);
+				}
+			}
+			return data;
+		}
+		
+		void close(){
+			closed = true;
+			try{
+				channel.close();
+				raf.close();
+			}catch(IOException ex){
+				ex.printStackTrace();
+			}
+			buffer = null;
+		}
+	}
+	
+	/**
+	 * location of tile data
+	 */
+	private static class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+		Location(Segment segment, long offset, int length){
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * open disk cache in a given directory, the directory is locked
+	 * for as long as the cache is open, since records are appended at
+	 * offsets known only to this instance
+	 * @param directory
+	 * @param capacity - max size of segment files in bytes
+	 * @throws IOException
+	 */
+	public DiskTileCache(File directory, long capacity) throws IOException {
+		this.directory = directory;
+		this.capacity = (capacity > 0)?capacity:DEFAULT_CAPACITY;
+		this.index = new HashMap<String,Location>();
+		this.segments = new LinkedList<Segment>();
+		
+		if(!directory.exists() && !directory.mkdirs())
+			throw new IOException("unable to create tile cache directory "+directory);
+		if(!directory.isDirectory() || !directory.canWrite())
+			throw new IOException("tile cache directory "+directory+" is not writable");
+		lock();
+		
+		try{
+			// load existing segments in order they were written
+			File [] files = directory.listFiles(new FileFilter(){
+				public boolean accept(File f) {
+					return getSegmentId(f) >= 0;
+				}
+			});
+			Arrays.sort(files,new Comparator<File>(){
+				public int compare(File a, File b) {
+					return getSegmentId(a) - getSegmentId(b);
+				}
+			});
+			for(File f: files){
+				Segment s = new Segment(getSegmentId(f),f);
+				load(s);
+				segments.add(s);
+				size += s.size;
+			}
+			for(Segment s: segments){
+				if(s != segments.getLast())
+					s.seal();
+			}
+			if(segments.isEmpty())
+				segments.add(new Segment(0,getSegmentFile(0)));
+			evict();
+		}catch(IOException ex){
+			dispose();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * take exclusive lock on cache directory
+	 * @throws IOException if directory is used by another cache instance
+	 */
+	private void lock() throws IOException {
+		// closing any descriptor of lock file drops process lock,
+		// so instances in the same JVM are checked before opening it
+		File dir = directory.getCanonicalFile();
+		synchronized(locked){
+			if(!locked.add(dir))
+				throw new IOException("tile cache directory "+directory+" is already open");
+		}
+		lockDirectory = dir;
+		try{
+			lockFile = new RandomAccessFile(new File(dir,LOCK_FILE),"rw");
+			try{
+				lock = lockFile.getChannel().tryLock();
+			}catch(OverlappingFileLockException ex){
+				lock = null;
+			}
+			if(lock == null)
+				throw new IOException("tile cache directory "+directory+" is in use by another process");
+		}catch(IOException ex){
+			unlock();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * release lock on cache directory
+	 */
+	private void unlock(){
+		try{
+			if(lock != null)
+				lock.release();
+			if(lockFile != null)
+				lockFile.close();
+		}catch(IOException ex){
+			ex.printStackTrace();
+		}
+		if(lockDirectory != null){
+			synchronized(locked){
+				locked.remove(lockDirectory);
+			}
+		}
+		lock = null;
+		lockFile = null;
+		lockDirectory = null;
+	}
+	
+	/**
+	 * get segment id from file name
+	 * @param f
+	 * @return -1 if not a segment file
+	 */
+	private static int getSegmentId(File f){
+		String name = f.getName();
+		if(f.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)){
+			try{
+				return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),name.length()-SEGMENT_SUFFIX.length()));
+			}catch(NumberFormatException ex){
+				//NOOP: not a segment
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * get file for a segment
+	 * @param id
+	 * @return
+	 */
+	private File getSegmentFile(int id){
+		return new File(directory,SEGMENT_PREFIX+id+SEGMENT_SUFFIX);
+	}
+	
+	/**
+	 * scan segment and add its records to index, truncated 
+	 * records (unfinished write) are cut off
+	 * @param s
+	 * @throws IOException
+	 */
+	private void load(Segment s) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		long offset = 0;
+		while(offset < s.size){
+			try{
+				header.clear();
+				readFully(s.channel,header,offset);
+				if(header.getInt(0) != MAGIC)
+					break;
+				int klen = header.getInt(4);
+				if(klen <= 0 || klen > MAX_KEY_SIZE)
+					break;
+				ByteBuffer kb = ByteBuffer.allocate(klen+4);
+				readFully(s.channel,kb,offset+8);
+				String key = new String(kb.array(),0,klen,"UTF-8");
+				int dlen = kb.getInt(klen);
+				long doffset = offset+8+klen+4;
+				if(dlen < 0 || doffset+dlen > s.size)
+					break;
+				index.put(key,new Location(s,doffset,dlen));
+				s.keys.add(key);
+				offset = doffset+dlen;
+			}catch(IOException ex){
+				break;
+			}
+		}
+		if(offset < s.size){
+			s.channel.truncate(offset);
+			s.size = offset;
+		}
+	}
+	
+	/**
+	 * read into buffer at a given position
+	 * @param channel
+	 * @param b
+	 * @param offset
+	 * @throws IOException
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer b, long offset) throws IOException {
+		while(b.hasRemaining()){
+			if(channel.read(b,offset+b.position()) < 0)
+				throw new IOException("unexpected end of file");
+		}
+	}
+	
+	/**
+	 * get tile from cache
+	 * @param key
+	 * @return null if tile is not in cache
+	 */
+	public byte [] get(String key){
+		Location loc;
+		synchronized(this){
+			loc = index.get(key);
+			if(loc == null){
+				misses ++;
+				return null;
+			}
+		}
+		try{
+			byte [] data = loc.segment.read(loc.offset,loc.length);
+			synchronized(this){
+				hits ++;
+			}
+			return data;
+		}catch(Exception ex){
+			// segment could have been evicted in the meantime
+			synchronized(this){
+				misses ++;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * is tile in cache
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean contains(String key){
+		return index.containsKey(key);
+	}
+	
+	/**
+	 * append tile to cache, oldest segments are
+	 * deleted if capacity is exceeded, large images are not cached.
+	 * Space for the record is reserved under lock, the record is written 
+	 * outside of it and becomes visible once it is written
+	 * @param key
+	 * @param data
+	 */
+	public void put(String key, byte [] data){
+		if(data.length > MAX_DATA_SIZE)
+			return;
+		try{
+			byte [] kb = key.getBytes("UTF-8");
+			if(kb.length > MAX_KEY_SIZE)
+				return;
+			ByteBuffer record = ByteBuffer.allocate(8+kb.length+4+data.length);
+			record.putInt(MAGIC).putInt(kb.length).put(kb).putInt(data.length).put(data);
+			record.flip();
+			
+			Segment s;
+			long offset;
+			synchronized(this){
+				// roll over to new segment, full segment is sealed once its writes are done
+				s = segments.getLast();
+				if(s.size > 0 && s.size + record.remaining() > SEGMENT_SIZE){
+					Segment full = s;
+					s = new Segment(s.id+1,getSegmentFile(s.id+1));
+					segments.add(s);
+					if(full.pending == 0)
+						full.seal();
+				}
+				offset = s.size;
+				s.size += record.limit();
+				size += record.limit();
+				s.pending ++;
+			}
+			
+			boolean written = false;
+			try{
+				while(record.hasRemaining())
+					s.channel.write(record,offset+record.position());
+				written = true;
+			}finally{
+				synchronized(this){
+					s.pending --;
+					if(written && !s.closed){
+						index.put(key,new Location(s,offset+8+kb.length+4,data.length));
+						s.keys.add(key);
+						puts ++;
+					}
+					if(s.pending == 0 && !s.closed && s.buffer == null && s != segments.getLast())
+						s.seal();
+					evict();
+				}
+			}
+		}catch(IOException ex){
+			synchronized(this){
+				errors ++;
+			}
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * delete oldest segments until cache is within capacity,
+	 * segments that are still being written to are kept
+	 */
+	private void evict(){
+		while(size > capacity && segments.size() > 1 && segments.getFirst().pending == 0){
+			Segment s = segments.removeFirst();
+			for(String key: s.keys){
+				Location loc = index.get(key);
+				if(loc != null && loc.segment == s){
+					index.remove(key);
+					evictions ++;
+				}
+			}
+			size -= s.size;
+			evictedBytes += s.size;
+			s.close();
+			if(!s.file.delete())
+				errors ++;
+		}
+	}
+	
+	/**
+	 * close segment files and release directory lock
+	 */
+	public synchronized void dispose(){
+		for(Segment s: segments){
+			try{
+				s.channel.force(false);
+			}catch(IOException ex){
+				ex.printStackTrace();
+			}
+			s.close();
+		}
+		segments.clear();
+		index.clear();
+		unlock();
+	}
+	
+	/**
+	 * get directory of segment files
+	 * @return
+	 */
+	public File getDirectory(){
+		return directory;
+	}
+	
+	/**
+	 * get cache statistics
+	 * @return
+	 */
+	public Properties getStatistics(){
+		return getStatistics("tile.cache.disk");
+	}
+	
+	/**
+	 * get cache statistics
+	 * @param prefix - prefix of property names
+	 * @return
+	 */
+	public synchronized Properties getStatistics(String prefix){
+		Properties p = new Properties();
+		p.setProperty(prefix+".directory",""+directory);
+		p.setProperty(prefix+".count",""+index.size());
+		p.setProperty(prefix+".size",""+size);
+		p.setProperty(prefix+".capacity",""+((capacity == UNLIMITED)?"unlimited":""+capacity));
+		p.setProperty(prefix+".segments",""+segments.size());
+		p.setProperty(prefix+".hits",""+hits);
+		p.setProperty(prefix+".misses",""+misses);
+		p.setProperty(prefix+".puts",""+puts);
+		p.setProperty(prefix+".evictions",""+evictions);
+		p.setProperty(prefix+".evicted.bytes",""+evictedBytes);
+		p.setProperty(prefix+".errors",""+errors);
+		return p;
+	}
+}
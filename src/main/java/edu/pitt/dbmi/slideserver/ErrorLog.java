@@ -0,0 +1,37 @@
+package edu.pitt.dbmi.slideserver;
+
+/**
+ *  receives errors of background workers, the server passes its own log,
+ *  so that they end up in the servlet container log instead of stderr
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public interface ErrorLog {
+	/**
+	 * log error
+	 * @param message
+	 * @param ex - cause of the error, can be null
+	 */
+	public void log(String message, Throwable ex);
+}
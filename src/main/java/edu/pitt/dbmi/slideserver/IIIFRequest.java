@@ -0,0 +1,396 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ *  IIIF Image API 3.0 request (http://iiif.io/api/image/3.0/).
+ *  The request path is {identifier}/{region}/{size}/{rotation}/{quality}.{format}
+ *  or {identifier}/info.json, where identifier is a slide path relative to image 
+ *  directory. Parameters are resolved against slide dimensions into a canonical
+ *  form, so that equivalent requests share a single cache entry. The info.json 
+ *  advertises tiles and scale factors that match native pyramid levels
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class IIIFRequest {
+	public static final String CONTEXT = "http://iiif.io/api/image/3/context.json";
+	public static final String INFO = "info.json";
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_SIZE = 4096;
+	
+	private String identifier, region, size, rotation, quality, format;
+	
+	// resolved request
+	private long x, y, width, height;
+	private int outputWidth, outputHeight, degrees;
+	private boolean mirror;
+	
+	
+	/**
+	 * parse IIIF request path
+	 * @param path - path following IIIF service prefix
+	 * @return
+	 * @throws IllegalArgumentException if path is not a valid IIIF request
+	 */
+	public static IIIFRequest parse(String path){
+		if(path.startsWith("/"))
+			path = path.substring(1);
+		String [] p = path.split("/");
+		IIIFRequest r = new IIIFRequest();
+		if(p.length >= 2 && INFO.equals(p[p.length-1])){
+			r.identifier = join(p,p.length-1);
+		}else if(p.length >= 5){
+			String qf = p[p.length-1];
+			int i = qf.lastIndexOf('.');
+			if(i < 0)
+				throw new IllegalArgumentException("missing format in "+qf);
+			r.identifier = join(p,p.length-4);
+			r.region = p[p.length-4];
+			r.size = p[p.length-3];
+			r.rotation = p[p.length-2];
+			r.quality = qf.substring(0,i);
+			r.format = qf.substring(i+1);
+		}else{
+			throw new IllegalArgumentException("invalid IIIF request "+path);
+		}
+		if(r.identifier.length() == 0)
+			throw new IllegalArgumentException("missing identifier");
+		return r;
+	}
+	
+	/**
+	 * join first n path elements
+	 * @param p
+	 * @param n
+	 * @return
+	 */
+	private static String join(String [] p, int n){
+		StringBuffer b = new StringBuffer();
+		for(int i=0;i<n;i++){
+			if(p[i].length() > 0)
+				b.append(((b.length() > 0)?"/":"")+p[i]);
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * get image identifier (slide path)
+	 * @return
+	 */
+	public String getIdentifier(){
+		return identifier;
+	}
+	
+	/**
+	 * is this an image information request
+	 * @return
+	 */
+	public boolean isInfo(){
+		return region == null;
+	}
+	
+	/**
+	 * get requested format
+	 * @return
+	 */
+	public String getFormat(){
+		return format;
+	}
+	
+	/**
+	 * get content type of requested format
+	 * @return
+	 */
+	public String getContentType(){
+		return "png".equals(format)?"image/png":"image/jpeg";
+	}
+	
+	/**
+	 * resolve request parameters against image size
+	 * @param imageWidth
+	 * @param imageHeight
+	 * @throws IllegalArgumentException if request is invalid for this image
+	 */
+	public void resolve(long imageWidth, long imageHeight){
+		resolveRegion(imageWidth,imageHeight);
+		resolveSize();
+		resolveRotation();
+		if(!("default".equals(quality) || "color".equals(quality) || "gray".equals(quality) || "bitonal".equals(quality)))
+			throw new IllegalArgumentException("unsupported quality "+quality);
+		if(!("jpg".equals(format) || "png".equals(format)))
+			throw new IllegalArgumentException("unsupported format "+format);
+	}
+	
+	/**
+	 * resolve region parameter
+	 * @param imageWidth
+	 * @param imageHeight
+	 */
+	private void resolveRegion(long imageWidth, long imageHeight){
+		if("full".equals(region)){
+			x = y = 0;
+			width = imageWidth;
+			height = imageHeight;
+		}else if("square".equals(region)){
+			long d = Math.min(imageWidth,imageHeight);
+			x = (imageWidth - d)/2;
+			y = (imageHeight - d)/2;
+			width = height = d;
+		}else if(region.startsWith("pct:")){
+			double [] r = parseNumbers(region.substring(4),4);
+			x = Math.round(r[0]*imageWidth/100);
+			y = Math.round(r[1]*imageHeight/100);
+			width = Math.round(r[2]*imageWidth/100);
+			height = Math.round(r[3]*imageHeight/100);
+		}else{
+			double [] r = parseNumbers(region,4);
+			x = (long) r[0];
+			y = (long) r[1];
+			width = (long) r[2];
+			height = (long) r[3];
+		}
+		// clip to image
+		if(x < 0 || y < 0 || x >= imageWidth || y >= imageHeight || width <= 0 || height <= 0)
+			throw new IllegalArgumentException("invalid region "+region);
+		width = Math.min(width,imageWidth-x);
+		height = Math.min(height,imageHeight-y);
+	}
+	
+	/**
+	 * resolve size parameter
+	 */
+	private void resolveSize(){
+		String s = size;
+		boolean upscale = s.startsWith("^");
+		if(upscale)
+			s = s.substring(1);
+		
+		double w, h;
+		if("max".equals(s)){
+			double scale = Math.min(((double)MAX_SIZE)/width,((double)MAX_SIZE)/height);
+			if(!upscale)
+				scale = Math.min(scale,1);
+			w = width*scale;
+			h = height*scale;
+		}else if(s.startsWith("pct:")){
+			double n = parseNumbers(s.substring(4),1)[0];
+			w = width*n/100;
+			h = height*n/100;
+		}else if(s.startsWith("!")){
+			double [] r = parseNumbers(s.substring(1),2);
+			double scale = Math.min(r[0]/width,r[1]/height);
+			w = width*scale;
+			h = height*scale;
+		}else if(s.endsWith(",")){
+			w = parseNumbers(s.substring(0,s.length()-1),1)[0];
+			h = height*w/width;
+		}else if(s.startsWith(",")){
+			h = parseNumbers(s.substring(1),1)[0];
+			w = width*h/height;
+		}else{
+			double [] r = parseNumbers(s,2);
+			w = r[0];
+			h = r[1];
+		}
+		outputWidth = (int) Math.round(Math.min(w,Integer.MAX_VALUE));
+		outputHeight = (int) Math.round(Math.min(h,Integer.MAX_VALUE));
+		
+		if(outputWidth <= 0 || outputHeight <= 0)
+			throw new IllegalArgumentException("invalid size "+size);
+		if(!upscale && (outputWidth > width || outputHeight > height))
+			throw new IllegalArgumentException("size "+size+" requires upscaling");
+		if(outputWidth > MAX_SIZE || outputHeight > MAX_SIZE)
+			throw new IllegalArgumentException("size "+size+" exceeds maximum size of "+MAX_SIZE);
+	}
+	
+	/**
+	 * resolve rotation parameter
+	 */
+	private void resolveRotation(){
+		String r = rotation;
+		mirror = r.startsWith("!");
+		if(mirror)
+			r = r.substring(1);
+		double d = parseNumbers(r,1)[0];
+		if(d < 0 || d > 360 || d % 90 != 0)
+			throw new IllegalArgumentException("unsupported rotation "+rotation);
+		degrees = ((int) d) % 360;
+	}
+	
+	/**
+	 * parse comma separated list of non-negative numbers
+	 * @param str
+	 * @param n - expected count
+	 * @return
+	 */
+	private double [] parseNumbers(String str, int n){
+		String [] p = str.split(",",-1);
+		if(p.length != n)
+			throw new IllegalArgumentException("invalid parameter "+str);
+		double [] r = new double [n];
+		for(int i=0;i<n;i++){
+			try{
+				r[i] = Double.parseDouble(p[i]);
+			}catch(NumberFormatException ex){
+				throw new IllegalArgumentException("invalid parameter "+str);
+			}
+			if(r[i] < 0 || Double.isNaN(r[i]) || Double.isInfinite(r[i]))
+				throw new IllegalArgumentException("invalid parameter "+str);
+		}
+		return r;
+	}
+	
+	/**
+	 * get canonical form of resolved image request 
+	 * (without identifier)
+	 * @param imageWidth
+	 * @param imageHeight
+	 * @return
+	 */
+	public String getCanonicalRequest(long imageWidth, long imageHeight){
+		boolean full = x == 0 && y == 0 && width == imageWidth && height == imageHeight;
+		boolean upscale = outputWidth > width || outputHeight > height;
+		return ((full)?"full":x+","+y+","+width+","+height)+"/"+
+			   ((upscale)?"^":"")+outputWidth+","+outputHeight+"/"+
+			   ((mirror)?"!":"")+degrees+"/"+quality+"."+format;
+	}
+	
+	/**
+	 * get number of native pixels that are read to render resolved request
+	 * @param slide
+	 * @return
+	 */
+	public long getReadSize(Slide slide){
+		return SlidePyramid.getReadSize(slide,((double)width)/outputWidth,outputWidth,outputHeight);
+	}
+	
+	/**
+	 * render resolved request
+	 * @param slide
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage render(Slide slide) throws IOException {
+		double downsample = ((double)width)/outputWidth;
+		BufferedImage img = SlidePyramid.readRegion(slide,x,y,downsample,outputWidth,outputHeight);
+		
+		// mirror and rotate
+		if(mirror || degrees != 0){
+			boolean swap = degrees == 90 || degrees == 270;
+			int w = (swap)?img.getHeight():img.getWidth();
+			int h = (swap)?img.getWidth():img.getHeight();
+			AffineTransform t = new AffineTransform();
+			t.translate(w/2.0,h/2.0);
+			t.rotate(Math.toRadians(degrees));
+			if(mirror)
+				t.scale(-1,1);
+			t.translate(-img.getWidth()/2.0,-img.getHeight()/2.0);
+			BufferedImage dst = new BufferedImage(w,h,BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = dst.createGraphics();
+			g.drawImage(img,t,null);
+			g.dispose();
+			img = dst;
+		}
+		
+		// convert quality
+		if("gray".equals(quality) || "bitonal".equals(quality)){
+			int type = "gray".equals(quality)?BufferedImage.TYPE_BYTE_GRAY:BufferedImage.TYPE_BYTE_BINARY;
+			BufferedImage dst = new BufferedImage(img.getWidth(),img.getHeight(),type);
+			Graphics2D g = dst.createGraphics();
+			g.drawImage(img,0,0,null);
+			g.dispose();
+			img = dst;
+			// JPEG can't do binary images, so put it back as gray
+			if(type == BufferedImage.TYPE_BYTE_BINARY && "jpg".equals(format)){
+				dst = new BufferedImage(img.getWidth(),img.getHeight(),BufferedImage.TYPE_BYTE_GRAY);
+				g = dst.createGraphics();
+				g.drawImage(img,0,0,null);
+				g.dispose();
+				img = dst;
+			}
+		}
+		return img;
+	}
+	
+	/**
+	 * get IIIF image information document (info.json) for a slide
+	 * @param slide
+	 * @param id - base URI of image service
+	 * @return
+	 */
+	public static String getInfo(Slide slide, String id){
+		long w = slide.getLevelWidth(0);
+		long h = slide.getLevelHeight(0);
+		
+		// scale factors that native levels can serve directly
+		Set<Long> factors = new TreeSet<Long>();
+		for(int i=0;i<slide.getLevelCount();i++){
+			long f = Math.max(1,Math.round(slide.getLevelDownsample(i)));
+			if(Math.max(w,h)/f >= 1)
+				factors.add(f);
+		}
+		StringBuffer scales = new StringBuffer();
+		StringBuffer sizes = new StringBuffer();
+		for(Long f: factors){
+			scales.append(((scales.length() > 0)?",":"")+f);
+			long sw = (w+f-1)/f, sh = (h+f-1)/f;
+			if(sw <= MAX_SIZE && sh <= MAX_SIZE)
+				sizes.insert(0,"{\"width\":"+sw+",\"height\":"+sh+"}"+((sizes.length() > 0)?",":""));
+		}
+		
+		StringBuffer b = new StringBuffer();
+		b.append("{\n");
+		b.append("  \"@context\": \""+CONTEXT+"\",\n");
+		b.append("  \"id\": \""+escape(id)+"\",\n");
+		b.append("  \"type\": \"ImageService3\",\n");
+		b.append("  \"protocol\": \"http://iiif.io/api/image\",\n");
+		b.append("  \"profile\": \"level2\",\n");
+		b.append("  \"width\": "+w+",\n");
+		b.append("  \"height\": "+h+",\n");
+		b.append("  \"maxWidth\": "+MAX_SIZE+",\n");
+		b.append("  \"maxHeight\": "+MAX_SIZE+",\n");
+		b.append("  \"tiles\": [{\"width\": "+TILE_SIZE+", \"height\": "+TILE_SIZE+", \"scaleFactors\": ["+scales+"]}],\n");
+		if(sizes.length() > 0)
+			b.append("  \"sizes\": ["+sizes+"],\n");
+		b.append("  \"extraQualities\": [\"color\",\"gray\",\"bitonal\"],\n");
+		b.append("  \"extraFormats\": [\"png\"],\n");
+		b.append("  \"extraFeatures\": [\"mirroring\",\"regionSquare\",\"sizeUpscaling\",\"canonicalLinkHeader\"]\n");
+		b.append("}\n");
+		return b.toString();
+	}
+	
+	/**
+	 * escape JSON string
+	 * @param str
+	 * @return
+	 */
+	private static String escape(String str){
+		return str.replace("\\","\\\\").replace("\"","\\\"");
+	}
+}
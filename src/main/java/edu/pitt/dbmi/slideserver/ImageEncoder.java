@@ -0,0 +1,613 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.Point;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ *  image encoder that keeps a small pool of image writers and output buffers,
+ *  instead of looking up a new writer for every ImageIO.write() call.
+ *  JPEG quality, chroma subsampling and progressive mode can be set per request.
+ *  Large JPEG images can be encoded from horizontal strips that are rendered
+ *  as the writer gets to them, so only one strip is held in memory
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class ImageEncoder {
+	// max size of a color plane that is kept for reuse
+	private static final int MAX_REUSABLE_PLANE = 1024*1024;
+	// max number of idle encoder states kept in the pool
+	private static final int MAX_POOLED_WRITERS = 16;
+	private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+	private static final LinkedList<Writers> writers = new LinkedList<Writers>();
+	
+	/**
+	 * encoding options
+	 */
+	public static class Options {
+		public static final int DEFAULT_QUALITY = 75;
+		public static final String SUBSAMPLING_444 = "444";
+		public static final String SUBSAMPLING_422 = "422";
+		public static final String SUBSAMPLING_420 = "420";
+		
+		private String format = "jpg";
+		private int quality = DEFAULT_QUALITY;
+		private String subsampling = SUBSAMPLING_420;
+		private boolean progressive;
+		
+		public Options(){}
+		
+		public Options(String format){
+			setFormat(format);
+		}
+		
+		/**
+		 * copy options
+		 * @param o
+		 */
+		public Options(Options o){
+			format = o.format;
+			quality = o.quality;
+			subsampling = o.subsampling;
+			progressive = o.progressive;
+		}
+		
+		public String getFormat() {
+			return format;
+		}
+		
+		/**
+		 * set image format (jpg or png)
+		 * @param format
+		 */
+		public void setFormat(String format) {
+			this.format = ("jpeg".equalsIgnoreCase(format))?"jpg":format.toLowerCase();
+		}
+		
+		public int getQuality() {
+			return quality;
+		}
+		
+		/**
+		 * set JPEG quality (1-100)
+		 * @param quality
+		 */
+		public void setQuality(int quality) {
+			this.quality = Math.max(1,Math.min(100,quality));
+		}
+		
+		public String getSubsampling() {
+			return subsampling;
+		}
+		
+		/**
+		 * set JPEG chroma subsampling (444, 422 or 420)
+		 * @param subsampling
+		 */
+		public void setSubsampling(String subsampling) {
+			if(!(SUBSAMPLING_444.equals(subsampling) || SUBSAMPLING_422.equals(subsampling) || SUBSAMPLING_420.equals(subsampling)))
+				throw new IllegalArgumentException("unsupported chroma subsampling "+subsampling);
+			this.subsampling = subsampling;
+		}
+		
+		public boolean isProgressive() {
+			return progressive;
+		}
+		
+		/**
+		 * use progressive instead of baseline JPEG
+		 * @param progressive
+		 */
+		public void setProgressive(boolean progressive) {
+			this.progressive = progressive;
+		}
+		
+		/**
+		 * is this JPEG format
+		 * @return
+		 */
+		public boolean isJPEG(){
+			return "jpg".equals(format);
+		}
+		
+		/**
+		 * get content type of the encoded image
+		 * @return
+		 */
+		public String getContentType(){
+			return (isJPEG())?"image/jpeg":"image/"+format;
+		}
+		
+		/**
+		 * get string that uniquely identifies these options 
+		 * (used in cache keys)
+		 */
+		public String toString(){
+			if(isJPEG())
+				return format+":q"+quality+":"+subsampling+((progressive)?":p":"");
+			return format;
+		}
+	}
+	
+	/**
+	 * source of image pixels that are rendered in horizontal strips,
+	 * strips are asked for top to bottom
+	 */
+	public static interface StripSource {
+		/**
+		 * get image width
+		 * @return
+		 */
+		public int getWidth();
+		
+		/**
+		 * get image height
+		 * @return
+		 */
+		public int getHeight();
+		
+		/**
+		 * get max number of rows in a strip
+		 * @return
+		 */
+		public int getStripHeight();
+		
+		/**
+		 * render strip of RGB pixels
+		 * @param y - first row of the strip
+		 * @param rows - number of rows in the strip
+		 * @param rgb - destination pixels, rows are getWidth() pixels wide
+		 * @throws IOException
+		 */
+		public void render(int y, int rows, int [] rgb) throws IOException;
+	}
+	
+	/**
+	 * pooled encoder state, it is used by one thread at a time
+	 */
+	private static class Writers {
+		final Map<String,ImageWriter> writers = new HashMap<String,ImageWriter>();
+		final Map<String,IIOMetadata> metadata = new HashMap<String,IIOMetadata>();
+		final Buffer buffer = new Buffer();
+		byte [][] planes = new byte [3][0];
+	}
+	
+	/**
+	 * reusable output buffer
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		private static final int MAX_REUSABLE_SIZE = 4*1024*1024;
+		public Buffer(){
+			super(64*1024);
+		}
+		/**
+		 * drop overgrown buffers, so that the pool doesn't hold on to them
+		 */
+		public void trim(){
+			if(buf.length > MAX_REUSABLE_SIZE)
+				buf = new byte [64*1024];
+		}
+	}
+	
+	/**
+	 * encode image
+	 * @param img
+	 * @param options
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte [] encode(BufferedImage img, Options options) throws IOException {
+		Writers w = borrowWriters();
+		Buffer buffer = w.buffer;
+		buffer.reset();
+		try{
+			encode(w,img,options,buffer);
+			return buffer.toByteArray();
+		}finally{
+			buffer.trim();
+			releaseWriters(w);
+		}
+	}
+	
+	/**
+	 * encode image to a given output stream
+	 * @param img
+	 * @param options
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void encode(BufferedImage img, Options options, OutputStream out) throws IOException {
+		Writers w = borrowWriters();
+		try{
+			encode(w,img,options,out);
+		}finally{
+			releaseWriters(w);
+		}
+	}
+	
+	/**
+	 * encode image to a given output stream with pooled writers
+	 * @param w
+	 * @param img
+	 * @param options
+	 * @param out
+	 * @throws IOException
+	 */
+	private static void encode(Writers w, BufferedImage img, Options options, OutputStream out) throws IOException {
+		ImageWriter writer = getWriter(w,options.getFormat());
+		ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+		try{
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = null;
+			if(options.isJPEG()){
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(options.getQuality()/100f);
+				param.setProgressiveMode((options.isProgressive())?ImageWriteParam.MODE_DEFAULT:ImageWriteParam.MODE_DISABLED);
+				metadata = getMetadata(w,writer,img,options.getSubsampling());
+			}
+			// color conversion is done by pixel kernels, writer only compresses
+			Raster ycc = (metadata != null)?toYCbCr(w,img):null;
+			writer.setOutput(ios);
+			if(ycc != null)
+				writer.write(null,new IIOImage(ycc,null,metadata),param);
+			else
+				writer.write(null,new IIOImage(img,null,metadata),param);
+			ios.flush();
+		}catch(IOException ex){
+			discard(w,options.getFormat());
+			throw ex;
+		}catch(RuntimeException ex){
+			discard(w,options.getFormat());
+			throw ex;
+		}finally{
+			writer.reset();
+			ios.close();
+		}
+	}
+	
+	/**
+	 * encode image that is rendered in strips as JPEG to a given output stream,
+	 * scanlines are written out as soon as they are compressed. Progressive 
+	 * mode is ignored, since encoder would have to keep the whole image
+	 * @param source
+	 * @param options - JPEG options
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void encode(StripSource source, Options options, OutputStream out) throws IOException {
+		if(!options.isJPEG())
+			throw new IOException("only JPEG images can be encoded in strips");
+		if((long) source.getWidth()*source.getHeight() > Integer.MAX_VALUE)
+			throw new IOException("image is too large");
+		Writers w = borrowWriters();
+		ImageWriter writer = getWriter(w,options.getFormat());
+		ImageOutputStream ios = new StreamOutput(out);
+		try{
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(options.getQuality()/100f);
+			param.setProgressiveMode(ImageWriteParam.MODE_DISABLED);
+			IIOMetadata metadata = getMetadata(w,writer,RasterUtils.createImage(1,1),options.getSubsampling());
+			writer.setOutput(ios);
+			writer.write(null,new IIOImage(new StripRaster(new StripBuffer(source)),null,metadata),param);
+			ios.flush();
+		}catch(IOException ex){
+			discard(w,options.getFormat());
+			throw ex;
+		}catch(StripException ex){
+			discard(w,options.getFormat());
+			throw (IOException) ex.getCause();
+		}catch(RuntimeException ex){
+			discard(w,options.getFormat());
+			throw ex;
+		}finally{
+			writer.reset();
+			ios.close();
+			releaseWriters(w);
+		}
+	}
+	
+	/**
+	 * carries strip rendering errors through the image writer
+	 */
+	private static class StripException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public StripException(IOException cause){
+			super(cause);
+		}
+	}
+	
+	/**
+	 * YCbCr planes of an image that are filled one strip at a time,
+	 * writer reads samples top to bottom
+	 */
+	private static class StripBuffer extends DataBuffer {
+		private final StripSource source;
+		private final int width, height, rows;
+		private final int [] rgb;
+		private final byte [][] planes;
+		private int top, bottom;
+		
+		public StripBuffer(StripSource source){
+			super(TYPE_BYTE,source.getWidth()*source.getHeight(),3);
+			this.source = source;
+			width = source.getWidth();
+			height = source.getHeight();
+			rows = Math.max(1,Math.min(height,source.getStripHeight()));
+			rgb = new int [width*rows];
+			planes = new byte [3][width*rows];
+		}
+		
+		public int getElem(int bank, int i) {
+			int offset = i - top*width;
+			if(offset < 0 || offset >= (bottom-top)*width){
+				load(i/width);
+				offset = i - top*width;
+			}
+			return planes[bank][offset] & 0xff;
+		}
+		
+		public void setElem(int bank, int i, int val) {
+			throw new UnsupportedOperationException("strip buffer is read only");
+		}
+		
+		/**
+		 * render strip that contains a given row
+		 * @param row
+		 */
+		private void load(int row){
+			if(row < top)
+				throw new IllegalStateException("strip rows have to be read top to bottom");
+			top = (row/rows)*rows;
+			bottom = Math.min(height,top+rows);
+			int n = (bottom-top)*width;
+			try{
+				source.render(top,bottom-top,rgb);
+			}catch(IOException ex){
+				throw new StripException(ex);
+			}
+			PixelKernels.getInstance().toYCbCr(rgb,0,n,planes[0],planes[1],planes[2],0);
+		}
+	}
+	
+	/**
+	 * raster of YCbCr planes backed by strip buffer
+	 */
+	private static class StripRaster extends Raster {
+		public StripRaster(StripBuffer buffer){
+			super(new BandedSampleModel(DataBuffer.TYPE_BYTE,buffer.width,buffer.height,buffer.width,
+					new int [] {0,1,2},new int [] {0,0,0}),buffer,new Point());
+		}
+	}
+	
+	/**
+	 * image output stream that writes straight through to an output
+	 * stream without caching, it can't seek back
+	 */
+	private static class StreamOutput extends ImageOutputStreamImpl {
+		private final OutputStream out;
+		
+		public StreamOutput(OutputStream out){
+			this.out = out;
+		}
+		
+		public void write(int b) throws IOException {
+			flushBits();
+			out.write(b);
+			streamPos ++;
+		}
+		
+		public void write(byte [] b, int off, int len) throws IOException {
+			flushBits();
+			out.write(b,off,len);
+			streamPos += len;
+		}
+		
+		public int read() throws IOException {
+			throw new IOException("output stream can't be read");
+		}
+		
+		public int read(byte [] b, int off, int len) throws IOException {
+			throw new IOException("output stream can't be read");
+		}
+		
+		public void seek(long pos) throws IOException {
+			if(pos != streamPos)
+				throw new IOException("output stream can't seek");
+		}
+		
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+	
+	/**
+	 * convert RGB image to a raster of YCbCr planes, JPEG writer 
+	 * takes raster samples as they are, without color conversion
+	 * @param w
+	 * @param img
+	 * @return null if image is not a plain int RGB image
+	 */
+	private static Raster toYCbCr(Writers w, BufferedImage img){
+		if(img.getType() != BufferedImage.TYPE_INT_RGB || img.getRaster().getParent() != null)
+			return null;
+		int width = img.getWidth(), height = img.getHeight();
+		int [] rgb = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		if(rgb.length != width*height)
+			return null;
+		// planes are reused, unless they are too big to keep
+		int n = width*height;
+		byte [][] planes = w.planes;
+		if(planes[0].length < n){
+			planes = new byte [][] {new byte [n],new byte [n],new byte [n]};
+			if(n <= MAX_REUSABLE_PLANE)
+				w.planes = planes;
+		}
+		PixelKernels.getInstance().toYCbCr(rgb,0,n,planes[0],planes[1],planes[2],0);
+		return Raster.createBandedRaster(new DataBufferByte(planes,n),width,height,width,
+				new int [] {0,1,2},new int [] {0,0,0},null);
+	}
+	
+	/**
+	 * take encoder state from the pool
+	 * @return
+	 */
+	private static Writers borrowWriters(){
+		synchronized(writers){
+			if(!writers.isEmpty())
+				return writers.removeFirst();
+		}
+		return new Writers();
+	}
+	
+	/**
+	 * return encoder state to the pool, unless the pool is full
+	 * @param w
+	 */
+	private static void releaseWriters(Writers w){
+		synchronized(writers){
+			if(writers.size() < MAX_POOLED_WRITERS){
+				writers.addFirst(w);
+				return;
+			}
+		}
+		dispose(w);
+	}
+	
+	/**
+	 * dispose writers of encoder state
+	 * @param w
+	 */
+	private static void dispose(Writers w){
+		for(ImageWriter writer: w.writers.values())
+			writer.dispose();
+		w.writers.clear();
+		w.metadata.clear();
+	}
+	
+	/**
+	 * dispose pooled writers and buffers, called when the server shuts down
+	 */
+	public static void dispose(){
+		synchronized(writers){
+			for(Writers w: writers)
+				dispose(w);
+			writers.clear();
+		}
+	}
+	
+	/**
+	 * get pooled writer
+	 * @param w
+	 * @param format
+	 * @return
+	 * @throws IOException
+	 */
+	private static ImageWriter getWriter(Writers w, String format) throws IOException {
+		ImageWriter writer = w.writers.get(format);
+		if(writer == null){
+			Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+			if(!it.hasNext())
+				throw new IOException("no image writer for "+format+" format");
+			writer = it.next();
+			w.writers.put(format,writer);
+		}
+		return writer;
+	}
+	
+	/**
+	 * drop writer that failed
+	 * @param w
+	 * @param format
+	 */
+	private static void discard(Writers w, String format){
+		ImageWriter writer = w.writers.remove(format);
+		if(writer != null)
+			writer.dispose();
+		w.metadata.clear();
+	}
+	
+	/**
+	 * get JPEG metadata with a given chroma subsampling
+	 * @param w
+	 * @param writer
+	 * @param img
+	 * @param subsampling
+	 * @return
+	 * @throws IOException
+	 */
+	private static IIOMetadata getMetadata(Writers w, ImageWriter writer, BufferedImage img, String subsampling) throws IOException {
+		// chroma subsampling only applies to color images
+		if(img.getColorModel().getNumColorComponents() != 3)
+			return null;
+		String key = img.getType()+":"+subsampling;
+		IIOMetadata metadata = w.metadata.get(key);
+		if(metadata == null){
+			ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(img);
+			metadata = writer.getDefaultImageMetadata(type,null);
+			int h = 1, v = 1;
+			if(Options.SUBSAMPLING_422.equals(subsampling)){
+				h = 2;
+			}else if(Options.SUBSAMPLING_420.equals(subsampling)){
+				h = v = 2;
+			}
+			Node tree = metadata.getAsTree(JPEG_METADATA);
+			NodeList components = ((Element) tree).getElementsByTagName("componentSpec");
+			for(int i=0;i<components.getLength();i++){
+				Element c = (Element) components.item(i);
+				// only luminance is sampled at full resolution
+				c.setAttribute("HsamplingFactor",""+((i == 0)?h:1));
+				c.setAttribute("VsamplingFactor",""+((i == 0)?v:1));
+			}
+			metadata.setFromTree(JPEG_METADATA,tree);
+			w.metadata.put(key,metadata);
+		}
+		return metadata;
+	}
+}
@@ -4,6 +4,7 @@ import ij.ImagePlus;
 import ij.io.FileInfo;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
@@ -84,22 +85,44 @@ public class ImageJImage implements Slide {
 	public BufferedImage getRegion(int x, int y, int width, int height, int size) {
 		// convert coordinates
 		int w = size;
-		int h = (height * w)/ width;
+		int h = Math.max(1,(int)(((long)height * w)/ width));
 		
 		// if region is horizontal
 		if(height > width){
 			h = size;
-			w = (width * h)/ height;
+			w = Math.max(1,(int)(((long)width * h)/ height));
 		}
 		
-		BufferedImage buffer = new BufferedImage(w,h,getType());
-				
-		// scale this image
-		buffer.createGraphics().drawImage(image.getImage(),0,0,w,h,x,y,x+width,y+height,Color.white,null);
-		
-		return buffer;
+		// crop region on white background and scale it
+		return Resampler.scale(getLevelRegion(0,x,y,width,height),w,h);
 	}
 
+	public int getLevelCount() {
+		return 1;
+	}
+	
+	public long getLevelWidth(int level) {
+		return image.getWidth();
+	}
+	
+	public long getLevelHeight(int level) {
+		return image.getHeight();
+	}
+	
+	public double getLevelDownsample(int level) {
+		return 1;
+	}
+	
+	public BufferedImage getLevelRegion(int level, long x, long y, int width, int height) {
+		BufferedImage buffer = new BufferedImage(width,height,getType());
+		Graphics2D g = buffer.createGraphics();
+		g.setColor(Color.white);
+		g.fillRect(0,0,width,height);
+		g.drawImage(image.getImage(),0,0,width,height,(int)x,(int)y,(int)x+width,(int)y+height,null);
+		g.dispose();
+		return buffer;
+	}
+	
 	/**
 	 * get buffered image type
 	 * @return
@@ -187,10 +210,7 @@ public class ImageJImage implements Slide {
 				height = max;
 			}
 			// scale this image
-			BufferedImage img = new BufferedImage(width, height,getType());
-			img.getGraphics().setColor(Color.white);
-			img.getGraphics().drawImage(image.getImage(),0,0,width,height,0,0,image.getWidth(),image.getHeight(),null);
-			return img;
+			return Resampler.scale(image.getBufferedImage(),width,height);
 		}else
 			return image.getBufferedImage();
 	}
@@ -205,6 +225,28 @@ public class ImageJImage implements Slide {
 		return (time > MAX_AGE);
 	}
 	
+	/**
+	 * get estimated memory footprint of this slide
+	 * in bytes, while it is open (decoded pixels)
+	 * @return
+	 */
+	public long getMemorySize(){
+		return 4L*image.getWidth()*image.getHeight();
+	}
+	
+	/**
+	 * nothing to release, the whole image is in memory
+	 */
+	public void trim(){}
+	
+	/**
+	 * get runtime statistics of an open slide
+	 * @return
+	 */
+	public Properties getStatistics(){
+		return new Properties();
+	}
+	
 	public void setLabelAllowed(boolean labelAllowed) {
 		this.labelAllowed = labelAllowed;
 	}
@@ -0,0 +1,370 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ *  store of slide metadata (slide info), so that info requests can be 
+ *  answered without opening the slide. Metadata is keyed by slide path, 
+ *  modification time and size, so a modified slide is never matched with 
+ *  its old metadata. Most recently used entries are kept in memory, all of
+ *  them are persisted as property files in an optional directory, so they 
+ *  survive restarts. A background scanner can fill the store for every 
+ *  slide in image directory ahead of time
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class MetadataStore {
+	public static final int DEFAULT_CAPACITY = 10000;
+	private static final String KEY = "metadata.key";
+	private static final String SUFFIX = ".properties";
+	
+	private final File directory;
+	private final int capacity;
+	private final Map<String,Properties> map;
+	private long hits, misses, loads, puts, errors;
+	private volatile long scanned, scanErrors;
+	private volatile boolean scanning;
+	private Thread scanner;
+	
+	/**
+	 * gets metadata of slides that are not in store
+	 */
+	public static interface Loader {
+		/**
+		 * get slide info
+		 * @param path - slide path relative to image directory
+		 * @return
+		 * @throws IOException
+		 */
+		public Properties load(String path) throws IOException;
+	}
+	
+	/**
+	 * create metadata store
+	 * @param directory - where metadata is persisted, null keeps it in memory only
+	 * @param capacity - max number of entries kept in memory
+	 * @throws IOException
+	 */
+	public MetadataStore(File directory, int capacity) throws IOException {
+		this.directory = directory;
+		this.capacity = (capacity > 0)?capacity:DEFAULT_CAPACITY;
+		// access ordered map gives us LRU iteration order
+		this.map = new LinkedHashMap<String,Properties>(1024,0.75f,true){
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String,Properties> eldest) {
+				return size() > MetadataStore.this.capacity;
+			}
+		};
+		if(directory != null){
+			if(!directory.exists() && !directory.mkdirs())
+				throw new IOException("unable to create metadata directory "+directory);
+			if(!directory.isDirectory() || !directory.canWrite())
+				throw new IOException("metadata directory "+directory+" is not writable");
+		}
+	}
+	
+	/**
+	 * get key that identifies a version of a slide file
+	 * @param file
+	 * @return
+	 */
+	private String getKey(File file){
+		return TileCache.getKey(file,"info");
+	}
+	
+	/**
+	 * get persisted metadata file of a slide, one file per slide path
+	 * @param file - slide file
+	 * @return
+	 */
+	private File getMetadataFile(File file){
+		try{
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte [] digest = md.digest(file.getAbsolutePath().getBytes("utf-8"));
+			StringBuffer b = new StringBuffer();
+			for(byte d: digest)
+				b.append(Integer.toHexString((d & 0xFF) | 0x100).substring(1));
+			return new File(directory,b.append(SUFFIX).toString());
+		}catch(NoSuchAlgorithmException ex){
+			throw new RuntimeException(ex);
+		}catch(UnsupportedEncodingException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * get slide metadata, returned properties should not be modified
+	 * @param file - slide file
+	 * @return null if this version of the slide is not in store
+	 */
+	public Properties get(File file){
+		String key = getKey(file);
+		synchronized(this){
+			Properties info = map.get(key);
+			if(info != null){
+				hits ++;
+				return info;
+			}
+		}
+		// check persisted metadata outside of the lock
+		Properties info = read(file,key);
+		synchronized(this){
+			if(info == null){
+				misses ++;
+				return null;
+			}
+			loads ++;
+			map.put(key,info);
+		}
+		return info;
+	}
+	
+	/**
+	 * is this version of the slide in store,
+	 * this doesn't count as store access
+	 * @param file
+	 * @return
+	 */
+	public boolean contains(File file){
+		String key = getKey(file);
+		synchronized(this){
+			if(map.containsKey(key))
+				return true;
+		}
+		return read(file,key) != null;
+	}
+	
+	/**
+	 * put slide metadata into store
+	 * @param file - slide file
+	 * @param info - slide info
+	 */
+	public void put(File file, Properties info){
+		String key = getKey(file);
+		Properties copy = new Properties();
+		copy.putAll(info);
+		synchronized(this){
+			Properties old = map.put(key,copy);
+			// nothing new to persist
+			if(old != null && old.equals(copy))
+				return;
+			puts ++;
+		}
+		write(file,key,copy);
+	}
+	
+	/**
+	 * read persisted metadata
+	 * @param file - slide file
+	 * @param key - key of current version of the slide
+	 * @return null if there is no metadata for this version of the slide
+	 */
+	private Properties read(File file, String key){
+		if(directory == null)
+			return null;
+		File f = getMetadataFile(file);
+		if(!f.exists())
+			return null;
+		Properties info = new Properties();
+		InputStream in = null;
+		try{
+			in = new FileInputStream(f);
+			info.load(in);
+		}catch(IOException ex){
+			synchronized(this){
+				errors ++;
+			}
+			return null;
+		}finally{
+			close(in);
+		}
+		// metadata of older version of the slide
+		if(!key.equals(info.remove(KEY)))
+			return null;
+		return info;
+	}
+	
+	/**
+	 * persist metadata, it is written to a temporary file first,
+	 * so that readers never see a partial file
+	 * @param file - slide file
+	 * @param key - key of current version of the slide
+	 * @param info
+	 */
+	private void write(File file, String key, Properties info){
+		if(directory == null)
+			return;
+		File f = getMetadataFile(file);
+		File tmp = new File(directory,f.getName()+"."+Thread.currentThread().getId()+".tmp");
+		Properties p = new Properties();
+		p.putAll(info);
+		p.setProperty(KEY,key);
+		OutputStream out = null;
+		try{
+			out = new FileOutputStream(tmp);
+			p.store(out,file.getAbsolutePath());
+			out.close();
+			out = null;
+			if(!tmp.renameTo(f)){
+				f.delete();
+				if(!tmp.renameTo(f))
+					throw new IOException("unable to rename "+tmp+" to "+f);
+			}
+		}catch(IOException ex){
+			synchronized(this){
+				errors ++;
+			}
+			ex.printStackTrace();
+		}finally{
+			close(out);
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * close stream quietly
+	 * @param c
+	 */
+	private void close(Closeable c){
+		try{
+			if(c != null)
+				c.close();
+		}catch(IOException ex){
+			//NOOP
+		}
+	}
+	
+	/**
+	 * start filling the store in background with metadata of every slide 
+	 * that is not there yet, scanner runs at low priority and waits while 
+	 * render threads are busy
+	 * @param root - image directory
+	 * @param index - directory index, can be null
+	 * @param loader - gets metadata of a slide
+	 * @param renderer - executor that should not be competed with, can be null
+	 */
+	public synchronized void scan(final File root, final DirectoryIndex index, final Loader loader, final RenderExecutor renderer){
+		if(scanning)
+			return;
+		scanning = true;
+		scanner = new Thread(new Runnable(){
+			public void run() {
+				try{
+					DirectoryIndex.Entry dir = null;
+					if(index != null){
+						while(!index.isReady())
+							Thread.sleep(1000);
+						dir = index.get("");
+					}
+					if(dir == null)
+						dir = DirectoryIndex.load(root,"");
+					if(dir != null)
+						scan(dir,loader,renderer);
+				}catch(InterruptedException ex){
+					//NOOP: store is disposed
+				}finally{
+					scanning = false;
+				}
+			}
+		},"MetadataStore-scanner");
+		scanner.setDaemon(true);
+		scanner.setPriority(Thread.MIN_PRIORITY);
+		scanner.start();
+	}
+	
+	/**
+	 * get metadata of all slides in directory tree
+	 * @param dir
+	 * @param loader
+	 * @param renderer
+	 * @throws InterruptedException
+	 */
+	private void scan(DirectoryIndex.Entry dir, Loader loader, RenderExecutor renderer) throws InterruptedException {
+		for(DirectoryIndex.Entry e: dir.getChildren().values()){
+			if(Thread.currentThread().isInterrupted())
+				throw new InterruptedException();
+			if(e.isHidden())
+				continue;
+			if(e.isDirectory()){
+				scan(e,loader,renderer);
+				continue;
+			}
+			File file = e.getFile();
+			if(contains(file) || !OpenSlideImage.isValid(file.getAbsolutePath()))
+				continue;
+			// don't compete with requests
+			while(renderer != null && !renderer.isIdle())
+				Thread.sleep(100);
+			try{
+				put(file,loader.load(e.getPath().replace('/',File.separatorChar)));
+				scanned ++;
+			}catch(Exception ex){
+				scanErrors ++;
+			}
+		}
+	}
+	
+	/**
+	 * stop background scanner and clear memory
+	 */
+	public void dispose(){
+		synchronized(this){
+			if(scanner != null)
+				scanner.interrupt();
+			map.clear();
+		}
+	}
+	
+	/**
+	 * get store statistics
+	 * @return
+	 */
+	public synchronized Properties getStatistics(){
+		Properties p = new Properties();
+		p.setProperty("metadata.store.count",""+map.size());
+		p.setProperty("metadata.store.capacity",""+capacity);
+		p.setProperty("metadata.store.persistent",""+(directory != null));
+		p.setProperty("metadata.store.hits",""+hits);
+		p.setProperty("metadata.store.misses",""+misses);
+		p.setProperty("metadata.store.loads",""+loads);
+		p.setProperty("metadata.store.puts",""+puts);
+		p.setProperty("metadata.store.errors",""+errors);
+		p.setProperty("metadata.store.scan.running",""+scanning);
+		p.setProperty("metadata.store.scan.slides",""+scanned);
+		p.setProperty("metadata.store.scan.errors",""+scanErrors);
+		return p;
+	}
+}
@@ -3,12 +3,22 @@ package edu.pitt.dbmi.slideserver;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.ImageIcon;
 import javax.swing.JOptionPane;
@@ -50,12 +60,144 @@ public class OpenSlideImage implements Slide {
 	public static final String NO_LABEL = ".nolabel";
 	//max age in milli seconds
 	public static final int MAX_AGE = 5*60*1000; 
+	//estimated native overhead of an open slide handle (OpenSlide tile cache)
+	public static final long HANDLE_SIZE = 32*1024*1024;
+	//max number of native handles per slide and how long extra handles are kept idle
+	public static final int DEFAULT_MAX_HANDLES = 4;
+	public static final long HANDLE_IDLE_TIME = 60*1000;
+	private static int maxHandles = DEFAULT_MAX_HANDLES;
+	//regions with more native pixels then this are read in tiles by several threads
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 1024*1024;
+	private static final int PARALLEL_TILE_SIZE = 512;
+	private static long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	//max number of pixels in a single raster, larger regions have to be streamed
+	private static final long MAX_REGION_PIXELS = Integer.MAX_VALUE - 8;
+	private static ForkJoinPool readPool = createReadPool(Runtime.getRuntime().availableProcessors());
+	//max number of scaled label and macro images kept per slide
+	private static final int MAX_SCALED_IMAGES = 8;
 	private File file;
 	private OpenSlide image;
 	private Properties info;
 	private long age;
 	private boolean labelAllowed = true;
 	
+	// idle native handles, most recently used first
+	private final LinkedList<Handle> handles = new LinkedList<Handle>();
+	private int handleCount, activeReads, maxActiveReads;
+	private long reads, waits, parallelReads;
+	private boolean disposed;
+	
+	// decoded associated images (null if slide doesn't have one) and scaled 
+	// label and macro images, dropped when they are not used for a while
+	private final Map<String,BufferedImage> associatedImages = new HashMap<String,BufferedImage>();
+	private final Map<String,BufferedImage> scaledImages = new LinkedHashMap<String,BufferedImage>(16,0.75f,true){
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String,BufferedImage> eldest) {
+			return size() > MAX_SCALED_IMAGES;
+		}
+	};
+	private long imageAccess;
+	
+	/**
+	 * reads tiles of a region with its own native handle until
+	 * there are no tiles left, tiles are copied into a shared raster
+	 */
+	private class TileReader extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int [] dst;
+		private final long x, y;
+		private final int level, w, h, columns, count;
+		private final AtomicInteger next;
+		
+		TileReader(int [] dst, long x, long y, int level, int w, int h, AtomicInteger next){
+			this.dst = dst;
+			this.x = x;
+			this.y = y;
+			this.level = level;
+			this.w = w;
+			this.h = h;
+			this.next = next;
+			columns = (w+PARALLEL_TILE_SIZE-1)/PARALLEL_TILE_SIZE;
+			count = columns * ((h+PARALLEL_TILE_SIZE-1)/PARALLEL_TILE_SIZE);
+		}
+		
+		protected void compute() {
+			try{
+				Handle handle = borrowHandle();
+				int [] buffer = RasterUtils.getBuffer(PARALLEL_TILE_SIZE*PARALLEL_TILE_SIZE);
+				try{
+					double downsample = handle.slide.getLevelDownsample(level);
+					for(int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()){
+						int tx = (i % columns)*PARALLEL_TILE_SIZE;
+						int ty = (i / columns)*PARALLEL_TILE_SIZE;
+						int tw = Math.min(PARALLEL_TILE_SIZE,w-tx);
+						int th = Math.min(PARALLEL_TILE_SIZE,h-ty);
+						handle.slide.paintRegionARGB(buffer,x+Math.round(tx*downsample),y+Math.round(ty*downsample),level,tw,th);
+						for(int r=0;r<th;r++)
+							System.arraycopy(buffer,r*tw,dst,(ty+r)*w+tx,tw);
+					}
+				}finally{
+					RasterUtils.releaseBuffer(buffer);
+					releaseHandle(handle);
+				}
+			}catch(IOException ex){
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+	
+	/**
+	 * pooled native handle
+	 */
+	private static class Handle {
+		final OpenSlide slide;
+		long lastUsed;
+		Handle(OpenSlide slide){
+			this.slide = slide;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * set max number of native handles that are opened for a single slide
+	 * when it is read by several threads at once
+	 * @param n
+	 */
+	public static void setMaxHandles(int n){
+		maxHandles = Math.max(1,n);
+	}
+	
+	
+	/**
+	 * read large regions in tiles on a shared pool of threads, number 
+	 * of threads that read the same slide is still limited by max handles
+	 * @param threads - size of the pool, 1 or less reads every region in calling thread
+	 * @param threshold - min number of native pixels in a region that is read in parallel
+	 */
+	public static synchronized void setParallelReads(int threads, long threshold){
+		if(readPool != null)
+			readPool.shutdown();
+		readPool = createReadPool(threads);
+		parallelThreshold = (threshold > 0)?threshold:DEFAULT_PARALLEL_THRESHOLD;
+	}
+	
+	/**
+	 * create pool for parallel reads
+	 * @param threads
+	 * @return null if there is no point in reading in parallel
+	 */
+	private static ForkJoinPool createReadPool(int threads){
+		return (threads > 1)?new ForkJoinPool(threads):null;
+	}
+	
+	/**
+	 * get pool for parallel reads of a region of a given size
+	 * @param pixels - number of native pixels
+	 * @return null if region should be read in calling thread
+	 */
+	private static synchronized ForkJoinPool getReadPool(long pixels){
+		return (pixels > parallelThreshold)?readPool:null;
+	}
 	
 	/**
 	 * if label is unavailable, should an image be generated
@@ -96,6 +238,10 @@ public class OpenSlideImage implements Slide {
 		if(OpenSlide.detectVendor(file) ==  null)	
 			throw new IOException("slide "+file+" is not a valid whole slide image");
 		image = new OpenSlide(file);
+		handles.add(new Handle(image));
+		// labels are suppressed by marker file, unless label policy is set
+		labelAllowed = !(new File(file.getParentFile(),NO_LABEL)).exists();
+		handleCount = 1;
 		// update age
 		age = System.currentTimeMillis();
 	}
@@ -104,8 +250,136 @@ public class OpenSlideImage implements Slide {
 	 * dispose of this image
 	 */
 	public void dispose(){
-		image.dispose();
-		//label= macro = null;
+		List<Handle> idle;
+		synchronized(handles){
+			disposed = true;
+			handleCount -= handles.size();
+			idle = new ArrayList<Handle>(handles);
+			handles.clear();
+		}
+		// handles that are still in use are disposed when returned
+		for(Handle h: idle)
+			h.slide.dispose();
+		clearImages();
+	}
+	
+	/**
+	 * dispose of extra native handles that were not used for a while,
+	 * the primary handle is kept until the slide is disposed
+	 */
+	public void trim(){
+		List<Handle> idle = new ArrayList<Handle>();
+		long now = System.currentTimeMillis();
+		synchronized(handles){
+			for(Iterator<Handle> it = handles.descendingIterator();it.hasNext();){
+				Handle h = it.next();
+				if(h.slide != image && now - h.lastUsed > HANDLE_IDLE_TIME){
+					it.remove();
+					handleCount --;
+					idle.add(h);
+				}
+			}
+		}
+		for(Handle h: idle)
+			h.slide.dispose();
+		
+		// drop label and macro images nobody asked for in a while
+		synchronized(associatedImages){
+			if(now - imageAccess > HANDLE_IDLE_TIME)
+				clearImages();
+		}
+	}
+	
+	/**
+	 * drop decoded and scaled label and macro images
+	 */
+	private void clearImages(){
+		synchronized(associatedImages){
+			associatedImages.clear();
+			scaledImages.clear();
+		}
+	}
+	
+	/**
+	 * borrow native handle for reading pixels, another handle is opened
+	 * when all handles are busy, until max number of handles is reached
+	 * @return
+	 * @throws IOException
+	 */
+	private Handle borrowHandle() throws IOException {
+		synchronized(handles){
+			boolean waited = false;
+			while(!disposed && handles.isEmpty() && handleCount >= maxHandles){
+				if(!waited)
+					waits ++;
+				waited = true;
+				try{
+					handles.wait();
+				}catch(InterruptedException ex){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for slide "+getName());
+				}
+			}
+			if(disposed)
+				throw new IOException("slide "+getName()+" was disposed");
+			reads ++;
+			activeReads ++;
+			maxActiveReads = Math.max(maxActiveReads,activeReads);
+			if(!handles.isEmpty())
+				return handles.removeFirst();
+			// reserve a slot for a new handle
+			handleCount ++;
+		}
+		// opening a handle is slow, so do it outside of the lock
+		try{
+			return new Handle(new OpenSlide(file));
+		}catch(IOException ex){
+			synchronized(handles){
+				handleCount --;
+				activeReads --;
+				handles.notify();
+			}
+			throw ex;
+		}
+	}
+	
+	/**
+	 * return borrowed native handle
+	 * @param h
+	 */
+	private void releaseHandle(Handle h){
+		boolean dispose = false;
+		synchronized(handles){
+			activeReads --;
+			h.lastUsed = System.currentTimeMillis();
+			if(disposed){
+				handleCount --;
+				dispose = true;
+			}else{
+				handles.addFirst(h);
+				handles.notify();
+			}
+		}
+		if(dispose)
+			h.slide.dispose();
+	}
+	
+	/**
+	 * get native handle statistics
+	 * @return
+	 */
+	public Properties getStatistics(){
+		Properties p = new Properties();
+		synchronized(handles){
+			p.setProperty("handles",""+handleCount);
+			p.setProperty("handles.idle",""+handles.size());
+			p.setProperty("reads",""+reads);
+			p.setProperty("reads.active",""+activeReads);
+			p.setProperty("reads.active.max",""+maxActiveReads);
+			p.setProperty("reads.waits",""+waits);
+			p.setProperty("reads.parallel",""+parallelReads);
+		}
+		return p;
 	}
 	
 	public String getName(){
@@ -121,6 +395,9 @@ public class OpenSlideImage implements Slide {
 	}
 	
 	public void setLabelAllowed(boolean labelAllowed) {
+		// don't keep label pixels around once they are suppressed
+		if(this.labelAllowed && !labelAllowed)
+			clearImages();
 		this.labelAllowed = labelAllowed;
 	}
 
@@ -135,6 +412,34 @@ public class OpenSlideImage implements Slide {
 		return (time > MAX_AGE);
 	}
 	
+	/**
+	 * get estimated memory footprint of this slide
+	 * in bytes, while it is open
+	 * @return
+	 */
+	public long getMemorySize(){
+		long size;
+		synchronized(handles){
+			size = HANDLE_SIZE*Math.max(1,handleCount);
+		}
+		synchronized(associatedImages){
+			for(BufferedImage img: associatedImages.values())
+				size += getImageSize(img);
+			for(BufferedImage img: scaledImages.values())
+				size += getImageSize(img);
+		}
+		return size;
+	}
+	
+	/**
+	 * estimated memory used by image pixels
+	 * @param img
+	 * @return
+	 */
+	private static long getImageSize(BufferedImage img){
+		return (img != null)?4L*img.getWidth()*img.getHeight():0;
+	}
+	
 	/**
 	 * get slide metadata
 	 * @return
@@ -183,7 +488,16 @@ public class OpenSlideImage implements Slide {
 		// update age
 		age = System.currentTimeMillis();
 		try {
-			return filterImage(image.createThumbnailImage(max));
+			// large thumbnails are read in parallel like any other large region
+			if(getReadPool((long)max*max) != null)
+				return getRegion(0,0,(int)image.getLevel0Width(),(int)image.getLevel0Height(),max);
+			
+			Handle h = borrowHandle();
+			try{
+				return filterImage(h.slide.createThumbnailImage(max));
+			}finally{
+				releaseHandle(h);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -206,7 +520,11 @@ public class OpenSlideImage implements Slide {
 	 * @return
 	 */
 	public BufferedImage getLabel(int size){
-		BufferedImage label = null;
+		// label depends on label policy
+		String key = "label|"+isLabelAllowed()+"|"+size;
+		BufferedImage label = getScaledImage(key);
+		if(label != null)
+			return label;
 		
 		if(isLabelAllowed()){
 			label = getMetaImage("label");
@@ -224,6 +542,7 @@ public class OpenSlideImage implements Slide {
 				
 		// update label size
 		label = scaleImage(label, size);
+		putScaledImage(key,label);
 		
 		// update age
 		age = System.currentTimeMillis();
@@ -289,7 +608,12 @@ public class OpenSlideImage implements Slide {
 	 * @return
 	 */
 	public BufferedImage getMacroImage(int size){
-		BufferedImage  macro = getMetaImage("macro");;
+		// hamamatsu macro depends on label policy
+		String key = "macro|"+isLabelAllowed()+"|"+size;
+		BufferedImage macro = getScaledImage(key);
+		if(macro != null)
+			return macro;
+		macro = getMetaImage("macro");
 		
 		// macro images in hammatsu contain labels
 		if(!isLabelAllowed() && macro != null &&
@@ -299,6 +623,7 @@ public class OpenSlideImage implements Slide {
 		
 		// update label size
 		macro = scaleImage(macro, size);
+		putScaledImage(key,macro);
 		
 		// update age
 		age = System.currentTimeMillis();
@@ -312,14 +637,53 @@ public class OpenSlideImage implements Slide {
 	 * @return
 	 */
 	private BufferedImage getMetaImage(String key){
+		// associated images are decoded only once
+		synchronized(associatedImages){
+			imageAccess = System.currentTimeMillis();
+			if(associatedImages.containsKey(key))
+				return associatedImages.get(key);
+		}
 		//Map<String,BufferedImage> imageMap = image.getAssociatedImages();
 		Map<String,AssociatedImage> imageMap = image.getAssociatedImages();
+		BufferedImage img = null;
 		try {
-			return (imageMap.containsKey(key))?filterImage(imageMap.get(key).toBufferedImage()):null;
+			img = (imageMap.containsKey(key))?filterImage(imageMap.get(key).toBufferedImage()):null;
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		}
+		synchronized(associatedImages){
+			associatedImages.put(key,img);
+		}
+		return img;
+	}
+	
+	/**
+	 * get scaled label or macro image that was already produced,
+	 * returned images are shared and should not be modified
+	 * @param key
+	 * @return null if image is not there
+	 */
+	private BufferedImage getScaledImage(String key){
+		synchronized(associatedImages){
+			imageAccess = System.currentTimeMillis();
+			BufferedImage img = scaledImages.get(key);
+			if(img != null)
+				age = imageAccess;
+			return img;
+		}
+	}
+	
+	/**
+	 * keep scaled label or macro image 
+	 * @param key
+	 * @param img
+	 */
+	private void putScaledImage(String key, BufferedImage img){
+		synchronized(associatedImages){
+			if(img != null)
+				scaledImages.put(key,img);
 		}
-		return null;
 	}
 	
 	/**
@@ -330,49 +694,191 @@ public class OpenSlideImage implements Slide {
 	 * @param height
 	 * @param power
 	 * @return
+	 * @throws IOException
 	 */
 	
-	public BufferedImage getRegion(int x, int y, int width, int height, int size){
+	public BufferedImage getRegion(int x, int y, int width, int height, int size) throws IOException {
 		// convert coordinates
 		int w = size;
-		int h = (height * w)/ width;
+		int h = (int)(((long)height * w)/ width);
 		// if region is horizontal
 		if(height > width){
 			h = size;
-			w = (width * h)/ height;
+			w = (int)(((long)width * h)/ height);
 		}
 		
-		double scale = ((double) w)/width;
-		int sx = (int) (x * scale);
-		int sy = (int) (y * scale);
-	
-		double power = 1 /scale;
-		
-		// init buffer if not there yet
-		//if(buffer == null || buffer.getWidth() != w || buffer.getHeight() != h){
-		BufferedImage buffer = new BufferedImage(w,h,BufferedImage.TYPE_INT_RGB);
-		//}
+		double power = ((double) width)/w;
 		
-		buffer.getGraphics().setColor(Color.white);
-		buffer.getGraphics().fillRect(0,0,w,h);
+		// pick native level and figure out how many native pixels to read
+		int level = SlidePyramid.getBestLevel(this,power);
+		double scale = power / image.getLevelDownsample(level);
+		int lw = Math.max(1,(int) Math.round(w * scale));
+		int lh = Math.max(1,(int) Math.round(h * scale));
+		if((long)w*h > MAX_REGION_PIXELS || (long)lw*lh > MAX_REGION_PIXELS)
+			throw new IOException("region "+lw+"x"+lh+" is too large to read, max is "+MAX_REGION_PIXELS+" pixels");
 		
-		// draw new image
-		try {
-			image.paintRegion((Graphics2D)buffer.getGraphics(),0,0,sx,sy,w,h,power);
-		} catch (Exception e) {
-			e.printStackTrace();
+		BufferedImage buffer = RasterUtils.createImage(w,h);
+		int [] dst = RasterUtils.getPixels(buffer);
+		if(lw == w && lh == h){
+			// read native pixels straight into output image
+			readRegion(dst,x,y,level,w,h);
+		}else{
+			// read native pixels and scale the rest of the way
+			int [] src = RasterUtils.getBuffer(lw*lh);
+			try{
+				readRegion(src,x,y,level,lw,lh);
+				RasterUtils.scale(src,lw,lh,dst,w,h);
+			}finally{
+				RasterUtils.releaseBuffer(src);
+			}
 		}
+		
+		// update age
+		age = System.currentTimeMillis();
 		return buffer;
 		
 	}
+	
+	/**
+	 * read native pixels from a given level and composite them onto 
+	 * white background
+	 * @param dst - destination raster
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param level
+	 * @param w  - width in level coordinates
+	 * @param h  - height in level coordinates
+	 * @throws IOException
+	 */
+	private void readRegion(int [] dst, long x, long y, int level, int w, int h) throws IOException {
+		ForkJoinPool pool = getReadPool((long)w*h);
+		if(pool != null){
+			readRegion(pool,dst,x,y,level,w,h);
+		}else{
+			Handle handle = borrowHandle();
+			try{
+				handle.slide.paintRegionARGB(dst,x,y,level,w,h);
+			}finally{
+				releaseHandle(handle);
+			}
+		}
+		RasterUtils.compositeOnWhite(dst,w*h);
+	}
+	
+	/**
+	 * read native pixels in tiles on a given pool, there is one task 
+	 * for every native handle that could be used, so tasks don't sit 
+	 * in the pool waiting for handles that the slide doesn't have
+	 * @param pool
+	 * @param dst - destination raster
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param level
+	 * @param w  - width in level coordinates
+	 * @param h  - height in level coordinates
+	 * @throws IOException
+	 */
+	private void readRegion(ForkJoinPool pool, int [] dst, long x, long y, int level, int w, int h) throws IOException {
+		AtomicInteger next = new AtomicInteger();
+		final List<TileReader> readers = new ArrayList<TileReader>();
+		readers.add(new TileReader(dst,x,y,level,w,h,next));
+		int n = Math.min(Math.min(pool.getParallelism(),maxHandles),readers.get(0).count);
+		for(int i=1;i<n;i++)
+			readers.add(new TileReader(dst,x,y,level,w,h,next));
+		synchronized(handles){
+			parallelReads ++;
+		}
+		try{
+			pool.invoke(new RecursiveAction(){
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					invokeAll(readers);
+				}
+			});
+		}catch(RuntimeException ex){
+			// unwrap exceptions thrown by readers
+			for(Throwable t = ex; t != null; t = t.getCause()){
+				if(t instanceof IOException)
+					throw (IOException) t;
+			}
+			throw ex;
+		}
+	}
 
 	
+	/**
+	 * get number of levels in native image pyramid
+	 * @return
+	 */
+	public int getLevelCount(){
+		return image.getLevelCount();
+	}
+	
+	/**
+	 * get width of a native pyramid level
+	 * @param level
+	 * @return
+	 */
+	public long getLevelWidth(int level){
+		return image.getLevelWidth(level);
+	}
+	
+	/**
+	 * get height of a native pyramid level
+	 * @param level
+	 * @return
+	 */
+	public long getLevelHeight(int level){
+		return image.getLevelHeight(level);
+	}
+	
+	/**
+	 * get downsample factor of a native pyramid level
+	 * @param level
+	 * @return
+	 */
+	public double getLevelDownsample(int level){
+		return image.getLevelDownsample(level);
+	}
+	
+	/**
+	 * get image region from a native pyramid level without any rescaling
+	 * @param level
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param width  - width in level coordinates
+	 * @param height - height in level coordinates
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage getLevelRegion(int level, long x, long y, int width, int height) throws IOException {
+		if((long)width*height > MAX_REGION_PIXELS)
+			throw new IOException("region "+width+"x"+height+" is too large to read, max is "+MAX_REGION_PIXELS+" pixels");
+		BufferedImage buffer = RasterUtils.createImage(width,height);
+		readRegion(RasterUtils.getPixels(buffer),x,y,level,width,height);
+		// update age
+		age = System.currentTimeMillis();
+		return buffer;
+	}
+	
 	/**
 	 * if necessary, strip alpha channel so that image would render correctly
 	 * @param img
 	 * @return
 	 */
 	private BufferedImage filterImage(BufferedImage src){
+		// OpenSlide images are premultiplied ARGB, composite them onto white directly
+		if(src.getType() == BufferedImage.TYPE_INT_ARGB_PRE && src.getRaster().getParent() == null){
+			int w = src.getWidth(), h = src.getHeight();
+			int [] data = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+			if(data.length == w*h){
+				BufferedImage dst = RasterUtils.createImage(w,h);
+				int [] pixels = RasterUtils.getPixels(dst);
+				System.arraycopy(data,0,pixels,0,w*h);
+				RasterUtils.compositeOnWhite(pixels,w*h);
+				return dst;
+			}
+		}
 		if(src.getType() != BufferedImage.TYPE_INT_RGB){
 			BufferedImage dst = new BufferedImage(src.getWidth(),
 			src.getHeight(),BufferedImage.TYPE_INT_RGB);
@@ -391,32 +897,7 @@ public class OpenSlideImage implements Slide {
 	 * @return
 	 */
 	private BufferedImage scaleImage(BufferedImage src, int size){
-		if(src == null || size <= 0)
-			return src;
-		
-		int w = src.getWidth();
-		int h = src.getHeight();
-		// figure out aspect ratio
-		if(w > h){
-			// if size is the same, don't bother
-			if(w == size)
-				return src;
-			
-			h = (size * h)/w;
-			w = size;
-		}else{
-			// if size is the same, don't bother
-			if(h == size)
-				return src;
-			
-			w = (size * w)/h;
-			h = size;
-		}
-		BufferedImage dst = new BufferedImage(w,h,BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = dst.createGraphics();
-		g.drawImage(src.getScaledInstance(w,h,Image.SCALE_SMOOTH),0,0,null);
-		g.dispose();
-		return dst;
+		return Resampler.scaleToSize(src,size);
 	}
 
 	/**
@@ -478,7 +959,7 @@ public class OpenSlideImage implements Slide {
 	 * @return
 	 */
 	private boolean isLabelAllowed(){
-		return labelAllowed && !(new File(file.getParentFile(),NO_LABEL)).exists();
+		return labelAllowed;
 	}
 	
 	
@@ -1,19 +1,31 @@
 package edu.pitt.dbmi.slideserver;
 
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import javax.imageio.ImageIO;
 import javax.servlet.*;
 import javax.servlet.http.*;
-import javax.swing.Timer;
 
 /**
  *  @author Eugene Tseytlin (University of Pittsburgh)
@@ -41,11 +53,42 @@ import javax.swing.Timer;
  *  conditions of the GNU General Public License cover the whole
  *  combination.
  */
-public class OpenSlideServer extends HttpServlet {
+public class OpenSlideServer extends HttpServlet implements ErrorLog {
+	private static final long DEFAULT_MAX_AGE = 24*60*60;
+	private static final int MAX_BATCH_SIZE = 256;
+	//request header that carries admin token
+	private static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+	private static final String TILES_CONTENT_TYPE = "application/x-openslide-tiles";
+	//max number of output pixels of region and image requests
+	private static final long DEFAULT_MAX_IMAGE_PIXELS = 16384L*16384;
+	//JPEG images larger then that are streamed in strips
+	private static final long DEFAULT_STREAM_PIXELS = 4096L*4096;
+	private static final int DEFAULT_MAX_STREAMS = 2;
+	private static final int STREAM_RETRY_AFTER = 10;
+	//max number of pixels in exported TIFF image (not counting reduced levels)
+	private static final long DEFAULT_MAX_EXPORT_PIXELS = 1024L*1024*1024;
+	private static final int DEFAULT_MAX_EXPORTS = 1;
 	private File imageDirectory;
-	private Map<String,Slide> cache;
-	private Timer timer;
+	private DirectoryIndex index;
+	private SlideCache cache;
+	private TileCache tileCache;
+	private MetadataStore metadata;
+	private ThumbnailStore thumbnails;
+	private RenderExecutor renderer;
+	private TilePrefetcher prefetcher;
+	private PyramidGenerator generator;
+	private String adminToken;
+	private ImageEncoder.Options encoderOptions;
+	private long maxAge;
 	private boolean supressLabels;
+	private long maxImagePixels, streamPixels;
+	private int maxStreams;
+	private Semaphore streams;
+	private File exportDirectory;
+	private long maxExportPixels;
+	private int maxExports, exportThreads;
+	private Semaphore exports;
+	private ExecutorService exportExecutor;
 	
 	/**
 	 *  Initializes the servlet.
@@ -56,25 +99,208 @@ public class OpenSlideServer extends HttpServlet {
 		String dir = config.getInitParameter("image.dir");
 		imageDirectory = new File(dir);
 		
-		// initialize synchronized cache
-		cache = new Hashtable<String,Slide>();
+		// in-memory index of image directory (rescan interval in seconds)
+		String indexed = config.getInitParameter("directory.index.enabled");
+		if(indexed == null || Boolean.parseBoolean(indexed.trim())){
+			long interval = getNumberParameter(config,"directory.index.rescan.interval",DirectoryIndex.DEFAULT_RESCAN_INTERVAL/1000);
+			index = new DirectoryIndex(imageDirectory,interval*1000);
+		}
+		
+		// initialize slide cache (size in megabytes, max age in seconds)
+		long size = getNumberParameter(config,"slide.cache.size",SlideCache.DEFAULT_CAPACITY/(1024*1024));
+		long age  = getNumberParameter(config,"slide.cache.max.age",SlideCache.DEFAULT_MAX_AGE/1000);
+		cache = new SlideCache(size*1024*1024,age*1000);
+		
+		// initialize encoded tile cache (size in megabytes) 
+		// with optional persistent disk tier
+		DiskTileCache disk = null;
+		String tileDir = config.getInitParameter("tile.cache.dir");
+		if(tileDir != null && tileDir.trim().length() > 0){
+			size = getNumberParameter(config,"tile.cache.disk.size",DiskTileCache.DEFAULT_CAPACITY/(1024*1024));
+			try{
+				disk = new DiskTileCache(new File(tileDir.trim()),size*1024*1024);
+			}catch(IOException ex){
+				log("unable to open tile cache directory "+tileDir,ex);
+			}
+		}
+		// pre-rendered pyramids are kept in a store that is never evicted
+		DiskTileCache store = null;
+		String storeDir = config.getInitParameter("tile.store.dir");
+		if(storeDir != null && storeDir.trim().length() > 0){
+			try{
+				store = new DiskTileCache(new File(storeDir.trim()),DiskTileCache.UNLIMITED);
+			}catch(IOException ex){
+				log("unable to open tile store directory "+storeDir,ex);
+			}
+		}
+		size = getNumberParameter(config,"tile.cache.size",TileCache.DEFAULT_CAPACITY/(1024*1024));
+		tileCache = new TileCache(size*1024*1024,disk,store);
+		
+		// slide metadata store, persisted in optional directory
+		String metadataDir = config.getInitParameter("metadata.dir");
+		int count = (int) getNumberParameter(config,"metadata.cache.size",MetadataStore.DEFAULT_CAPACITY);
+		try{
+			metadata = new MetadataStore((metadataDir != null && metadataDir.trim().length() > 0)?new File(metadataDir.trim()):null,count);
+		}catch(IOException ex){
+			log("unable to open metadata directory "+metadataDir,ex);
+			try{
+				metadata = new MetadataStore(null,count);
+			}catch(IOException e){
+				//NOOP: in-memory store doesn't throw
+			}
+		}
+		
+		// default JPEG encoder settings, can be overwritten per request
+		encoderOptions = new ImageEncoder.Options();
+		encoderOptions.setQuality((int)getNumberParameter(config,"jpeg.quality",ImageEncoder.Options.DEFAULT_QUALITY));
+		setEncoderOptions(encoderOptions,config.getInitParameter("jpeg.subsampling"),config.getInitParameter("jpeg.progressive"));
 	
+		// filter of the last downscaling step (bilinear or lanczos)
+		String filter = config.getInitParameter("resample.filter");
+		if(filter != null && filter.trim().length() > 0){
+			try{
+				Resampler.setDefaultFilter(Resampler.getFilter(filter.trim()));
+			}catch(IllegalArgumentException ex){
+				log(ex.getMessage());
+			}
+		}
+		
+		// SIMD pixel kernels are used when they were built and JVM has vector module
+		String vector = config.getInitParameter("pixel.kernels.vector");
+		if(vector != null)
+			PixelKernels.setVectorEnabled(Boolean.parseBoolean(vector.trim()));
+		log("using "+PixelKernels.getInstance().getName()+" pixel kernels");
+		if(PixelKernels.getWarning() != null)
+			log(PixelKernels.getWarning());
+		
+		// max number of native handles that can read a hot slide in parallel
+		OpenSlideImage.setMaxHandles((int)getNumberParameter(config,"slide.handles.max",OpenSlideImage.DEFAULT_MAX_HANDLES));
+		
+		// large regions and thumbnails are read in tiles by several threads
+		int readThreads = (int) getNumberParameter(config,"render.parallel.threads",Runtime.getRuntime().availableProcessors());
+		long threshold = getNumberParameter(config,"render.parallel.threshold",OpenSlideImage.DEFAULT_PARALLEL_THRESHOLD);
+		OpenSlideImage.setParallelReads(readThreads,threshold);
+		
+		// bounded executor for slide opens and renders
+		int threads = (int) getNumberParameter(config,"render.threads",RenderExecutor.getDefaultThreads());
+		int queue = (int) getNumberParameter(config,"render.queue.size",RenderExecutor.DEFAULT_QUEUE_SIZE);
+		long timeout = getNumberParameter(config,"render.timeout",RenderExecutor.DEFAULT_TIMEOUT/1000);
+		renderer = new RenderExecutor(threads,queue,timeout*1000);
+		
+		// prefetch tiles around recent region requests while render threads are idle
+		String prefetch = config.getInitParameter("prefetch.enabled");
+		if(prefetch == null || Boolean.parseBoolean(prefetch.trim())){
+			queue = (int) getNumberParameter(config,"prefetch.queue.size",TilePrefetcher.DEFAULT_QUEUE_SIZE);
+			prefetcher = new TilePrefetcher(prefetchRenderer,renderer,tileCache,queue);
+		}
+		
+		// get metadata of all slides in background
+		if(Boolean.parseBoolean(config.getInitParameter("metadata.scan.enabled")))
+			metadata.scan(imageDirectory,index,metadataLoader,renderer);
+		
+		// thumbnails at standard sizes, optionally generated in background
+		try{
+			thumbnails = new ThumbnailStore(tileCache,ThumbnailStore.parseSizes(config.getInitParameter("thumbnail.sizes")),encoderOptions,this);
+		}catch(NumberFormatException ex){
+			log("invalid thumbnail sizes, using defaults",ex);
+			thumbnails = new ThumbnailStore(tileCache,ThumbnailStore.DEFAULT_SIZES,encoderOptions,this);
+		}
+		if(Boolean.parseBoolean(config.getInitParameter("thumbnail.scan.enabled"))){
+			threads = (int) getNumberParameter(config,"thumbnail.scan.threads",ThumbnailStore.DEFAULT_THREADS);
+			long interval = getNumberParameter(config,"thumbnail.scan.interval",ThumbnailStore.DEFAULT_SCAN_INTERVAL/1000);
+			if(!thumbnails.scan(imageDirectory,index,thumbnailRenderer,renderer,threads,interval*1000))
+				log("thumbnail scanner needs tile.store.dir or tile.cache.dir, it is not started");
+		}
+		
+		// large images are limited in size and JPEG images are streamed in strips
+		maxImagePixels = getNumberParameter(config,"image.max.pixels",DEFAULT_MAX_IMAGE_PIXELS);
+		streamPixels = getNumberParameter(config,"image.stream.threshold",DEFAULT_STREAM_PIXELS);
+		maxStreams = (int) Math.max(1,getNumberParameter(config,"image.stream.max",DEFAULT_MAX_STREAMS));
+		streams = new Semaphore(maxStreams);
+		
+		// TIFF exports are written to temporary files, tiles are compressed in parallel
+		String exportDir = config.getInitParameter("export.dir");
+		if(exportDir != null && exportDir.trim().length() > 0){
+			exportDirectory = new File(exportDir.trim());
+			if(!exportDirectory.isDirectory() && !exportDirectory.mkdirs()){
+				log("unable to create export directory "+exportDir+", using system temp directory");
+				exportDirectory = null;
+			}
+		}
+		maxExportPixels = getNumberParameter(config,"export.max.pixels",DEFAULT_MAX_EXPORT_PIXELS);
+		maxExports = (int) Math.max(1,getNumberParameter(config,"export.max",DEFAULT_MAX_EXPORTS));
+		exports = new Semaphore(maxExports);
+		exportThreads = (int) Math.max(1,getNumberParameter(config,"export.threads",Runtime.getRuntime().availableProcessors()));
+		exportExecutor = Executors.newFixedThreadPool(exportThreads*maxExports,new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"TiffExporter-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		// secret that admin requests have to send, admin actions are disabled without it
+		String token = config.getInitParameter("admin.token");
+		adminToken = (token != null && token.trim().length() > 0)?token.trim():null;
+		
+		// how long can clients cache image responses (seconds)
+		maxAge = getNumberParameter(config,"cache.max.age",DEFAULT_MAX_AGE);
+		
 		// should labels be supressed globally?
 		supressLabels = Boolean.parseBoolean(config.getInitParameter("suppress.labels"));
+	}
 	
-		// initialize trash compactor
-		timer = new Timer(3*60*1000,new ActionListener(){
-			public void actionPerformed(ActionEvent e) {
-				compactCache();
-				
-			}
-		});
-		timer.setRepeats(true);
-		timer.start();
+	/**
+	 * release all open slides
+	 */
+	public void destroy(){
+		if(prefetcher != null)
+			prefetcher.dispose();
+		synchronized(this){
+			if(generator != null)
+				generator.dispose();
+		}
+		renderer.dispose();
+		exportExecutor.shutdownNow();
+		if(index != null)
+			index.dispose();
+		metadata.dispose();
+		thumbnails.dispose();
+		cache.dispose();
+		tileCache.dispose();
+		ImageEncoder.dispose();
+		RasterUtils.clearBuffers();
+		super.destroy();
+	}
+	
+	/**
+	 * get numeric init parameter
+	 * @param config
+	 * @param name
+	 * @param def - default value
+	 * @return
+	 */
+	private long getNumberParameter(ServletConfig config, String name, long def){
+		String value = config.getInitParameter(name);
+		if(value == null || value.trim().length() == 0)
+			return def;
+		try{
+			return Long.parseLong(value.trim());
+		}catch(NumberFormatException ex){
+			log("invalid value of "+name+" parameter: "+value);
+		}
+		return def;
 	}
 	
-	protected void finalize() throws Exception {
-		timer.stop();
+	/**
+	 * long lists of tiles can be posted as a form
+	 * @param req
+	 * @param res
+	 * @throws IOException
+	 */
+	public void doPost( HttpServletRequest req, HttpServletResponse res ) throws IOException {
+		doGet(req,res);
 	}
 	
 	/**
@@ -85,21 +311,33 @@ public class OpenSlideServer extends HttpServlet {
 	 */
 	public void doGet( HttpServletRequest req, HttpServletResponse res ) throws IOException {
 		//req.setCharacterEncoding("UTF-8");
+		// Deep Zoom requests are addressed by path
+		if("/dzi".equals(req.getServletPath())){
+			doDeepZoom(req,res);
+			return;
+		}
+		// IIIF Image API requests are addressed by path
+		if("/iiif".equals(req.getServletPath())){
+			doIIIF(req,res);
+			return;
+		}
+		
 		// get action
 		String action = ""+req.getParameter( "action" );
 		if(action.equals( "list" ) ) {
-			String path = req.getParameter("path");
-			String recurse = req.getParameter("recurse");
-			File file = new File(imageDirectory+"/"+filter(path));
-			res.setContentType("text/plain");
-			res.getWriter().write((Boolean.valueOf(recurse))?listRecursive(file,""):list(file));
+			doList(req,res);
 		}else if(action.equals( "file" ) ) {
 			String path = req.getParameter("path");
 			File file = new File(imageDirectory,filter(path).replace('/',File.separatorChar));
 			if(file.exists()){
-				res.setContentType("image/jpeg");
+				ImageEncoder.Options options = getEncoderOptions(req);
+				String etag = getETag(getTileKey(file,action,options));
+				if(isNotModified(req,res,file,etag))
+					return;
 				try{
-					ImageIO.write(ImageIO.read(file), "jpg", res.getOutputStream());
+					byte [] data = ImageEncoder.encode(ImageIO.read(file),options);
+					setCacheHeaders(res,file,etag);
+					write(res,data,options.getContentType());
 				}catch(Exception ex){
 					res.setContentType("text/plain");
 					res.getWriter().write("error: "+ex.getMessage());
@@ -109,61 +347,189 @@ public class OpenSlideServer extends HttpServlet {
 				res.getWriter().write("error: file "+path+" doesn't exist");
 			}
 		}else if( action.equals( "info" ) ) {
-			String path = req.getParameter("path");
+			String path = getSlidePath(req.getParameter("path"));
+			SlideCache.Lease lease = null;
 			try{
-				compactCache();
-				Slide slide = getSlide(path);
+				// answer from metadata store, slide is only opened the first time
+				File file = getSlideFile(path);
+				Properties info = metadata.get(file);
+				if(info == null){
+					lease = leaseSlide(path);
+					info = lease.getSlide().getSlideInfo();
+					metadata.put(file,info);
+				}
 				res.setContentType("text/plain");
-				slide.getSlideInfo().store(res.getOutputStream(),slide.getPath());
+				info.store(res.getOutputStream(),file.getAbsolutePath());
+			}catch(RenderExecutor.BusyException ex){
+				sendBusy(res,ex);
 			}catch(IOException ex){
 				res.getWriter().write("error: "+ex.getMessage());
+			}finally{
+				if(lease != null)
+					lease.release();
 			}
+		}else if( action.equals( "stats" ) ) {
+			Properties stats = cache.getStatistics();
+			stats.putAll(tileCache.getStatistics());
+			stats.putAll(renderer.getStatistics());
+			stats.setProperty("pixel.kernels",PixelKernels.getInstance().getName());
+			stats.setProperty("image.streams.active",""+(maxStreams-streams.availablePermits()));
+			stats.setProperty("export.active",""+(maxExports-exports.availablePermits()));
+			stats.putAll(metadata.getStatistics());
+			stats.putAll(thumbnails.getStatistics());
+			if(prefetcher != null)
+				stats.putAll(prefetcher.getStatistics());
+			if(index != null)
+				stats.putAll(index.getStatistics());
+			res.setContentType("text/plain");
+			stats.store(res.getOutputStream(),"OpenSlideServer statistics");
 		}else if( action.equals( "region" ) ) {
-			String path = req.getParameter("path");
+			String path = getSlidePath(req.getParameter("path"));
 			int x = Integer.parseInt(filterNumber(req.getParameter("x")));
 			int y = Integer.parseInt(filterNumber(req.getParameter("y")));
 			int w = Integer.parseInt(filterNumber(req.getParameter("width")));
 			int h = Integer.parseInt(filterNumber(req.getParameter("height")));
 			int rw = Integer.parseInt(filterNumber(req.getParameter("size")));
+			Dimension size = StripRenderer.getImageSize(w,h,rw);
+			long pixels = (long) size.width*size.height;
+			ImageEncoder.Options options = getEncoderOptions(req);
+			if(isTooLarge(res,pixels,options))
+				return;
 			try{
-				Slide slide = getSlide(path);
-				res.setContentType("image/jpeg");
-				ImageIO.write(slide.getRegion(x,y,w,h,rw), "jpg", res.getOutputStream());
+				// check encoded tile cache first
+				File file = getSlideFile(path);
+				String key = getTileKey(file,action,x,y,w,h,rw,options);
+				String etag = getETag(key);
+				TilePrefetcher.Tile tile = new TilePrefetcher.Tile(path,x,y,w,h,rw,options);
+				if(isNotModified(req,res,file,etag)){
+					prefetch(req,tile,key);
+					return;
+				}
+				// large JPEG regions are too big for cache anyway
+				if(options.isJPEG() && pixels > streamPixels){
+					stream(res,path,file,etag,options,x,y,w,h,rw);
+					return;
+				}
+				byte [] data = tileCache.get(key);
+				if(data == null)
+					data = renderer.execute(createRegionTask(path,key,options,x,y,w,h,rw));
+				setCacheHeaders(res,file,etag);
+				write(res,data,options.getContentType());
+				prefetch(req,tile,key);
+			}catch(RenderExecutor.BusyException ex){
+				sendBusy(res,ex);
 			}catch(IOException ex){
 				res.setContentType("text/plain");
 				res.getWriter().write("error: "+ex.getMessage());
 			}
+		}else if( action.equals( "tiles" ) ) {
+			doTiles(req,res);
+		}else if( action.equals( "pyramid" ) ) {
+			doPyramid(req,res);
+		}else if( action.equals( "export" ) ) {
+			doExport(req,res);
 		}else if( action.equals( "image" ) ) {
-			String path = req.getParameter("path");
-			int rw = Integer.parseInt(filterNumber(req.getParameter("size")));
-			if(rw == 0)
-				rw = 1024;
+			String path = getSlidePath(req.getParameter("path"));
+			int size = Integer.parseInt(filterNumber(req.getParameter("size")));
+			final int rw = (size == 0)?1024:size;
+			// thumbnail fits into a square of a given size
+			final ImageEncoder.Options options = getEncoderOptions(req);
+			if(isTooLarge(res,(long)rw*rw,options))
+				return;
 			try{
-				Slide slide = getSlide(path);
-				res.setContentType("image/jpeg");
-				ImageIO.write(slide.getThumbnail(rw), "jpg", res.getOutputStream());
+				// check encoded tile cache first, standard sizes are stored there
+				final File file = getSlideFile(path);
+				final String key = ThumbnailStore.getKey(file,rw,options);
+				String etag = getETag(key);
+				if(isNotModified(req,res,file,etag))
+					return;
+				byte [] data = tileCache.get(key);
+				if(data == null){
+					// scale down from a larger stored thumbnail
+					data = renderer.execute(new Callable<byte []>(){
+						public byte [] call() throws Exception {
+							byte [] data = thumbnails.get(file,rw,options);
+							if(data != null)
+								tileCache.put(key,data);
+							return data;
+						}
+					});
+				}
+				if(data == null && options.isJPEG() && (long)rw*rw > streamPixels){
+					stream(res,path,file,etag,options,0,0,0,0,rw);
+					return;
+				}
+				if(data == null){
+					data = renderer.execute(new ImageTask(path,key,options){
+						protected BufferedImage render(Slide slide) throws IOException {
+							return slide.getThumbnail(rw);
+						}
+					});
+				}
+				setCacheHeaders(res,file,etag);
+				write(res,data,options.getContentType());
+			}catch(RenderExecutor.BusyException ex){
+				sendBusy(res,ex);
 			}catch(IOException ex){
 				res.setContentType("text/plain");
 				res.getWriter().write("error: "+ex.getMessage());
 			}
 		}else if( action.equals( "label" ) ) {
-			String path = req.getParameter("path");
-			int sz = Integer.parseInt(filterNumber(req.getParameter("size")));
+			String path = getSlidePath(req.getParameter("path"));
+			final int sz = Integer.parseInt(filterNumber(req.getParameter("size")));
 			try{
-				Slide slide = getSlide(path);
-				res.setContentType("image/jpeg");
-				ImageIO.write(slide.getLabel(sz),"jpg", res.getOutputStream());
+				// label policy changes the response without changing the slide
+				ImageEncoder.Options options = getEncoderOptions(req);
+				File file = getSlideFile(path);
+				final boolean labelAllowed = isLabelAllowed(file);
+				String key = getTileKey(file,action,sz,options,getLabelPolicy(file));
+				String etag = getETag(key);
+				// policy is part of entity tag, Last-Modified can't tell it changed
+				if(isNotModified(req,res,file,etag,false))
+					return;
+				byte [] data = tileCache.get(key);
+				if(data == null){
+					data = renderer.execute(new ImageTask(path,key,options){
+						protected BufferedImage render(Slide slide) throws IOException {
+							slide.setLabelAllowed(labelAllowed);
+							return slide.getLabel(sz);
+						}
+					});
+				}
+				setCacheHeaders(res,file,etag,false);
+				write(res,data,options.getContentType());
+			}catch(RenderExecutor.BusyException ex){
+				sendBusy(res,ex);
 			}catch(IOException ex){
 				res.setContentType("text/plain");
 				res.getWriter().write("error: "+ex.getMessage());
 			}
 		}else if( action.equals( "macro" ) ) {
-			String path = req.getParameter("path");
-			int sz = Integer.parseInt(filterNumber(req.getParameter("size")));
+			String path = getSlidePath(req.getParameter("path"));
+			final int sz = Integer.parseInt(filterNumber(req.getParameter("size")));
 			try{
-				Slide slide = getSlide(path);
-				res.setContentType("image/jpeg");
-				ImageIO.write(slide.getMacroImage(sz),"jpg", res.getOutputStream());
+				// label policy changes the response without changing the slide
+				ImageEncoder.Options options = getEncoderOptions(req);
+				File file = getSlideFile(path);
+				final boolean labelAllowed = isLabelAllowed(file);
+				String key = getTileKey(file,action,sz,options,getLabelPolicy(file));
+				String etag = getETag(key);
+				// policy is part of entity tag, Last-Modified can't tell it changed
+				if(isNotModified(req,res,file,etag,false))
+					return;
+				byte [] data = tileCache.get(key);
+				if(data == null){
+					data = renderer.execute(new ImageTask(path,key,options){
+						protected BufferedImage render(Slide slide) throws IOException {
+							slide.setLabelAllowed(labelAllowed);
+							return slide.getMacroImage(sz);
+						}
+					});
+				}
+				setCacheHeaders(res,file,etag,false);
+				write(res,data,options.getContentType());
+			}catch(RenderExecutor.BusyException ex){
+				sendBusy(res,ex);
 			}catch(IOException ex){
 				res.setContentType("text/plain");
 				res.getWriter().write("error: "+ex.getMessage());
@@ -178,47 +544,1055 @@ public class OpenSlideServer extends HttpServlet {
 	
 	
 	/**
-	 * iterate through open images and close stale files
+	 * stream content of a directory, answered from directory index if it knows
+	 * this directory. Optional parameters: format=json, glob=<pattern>, 
+	 * offset=<n>, limit=<n> and cursor=<next cursor of previous page>
+	 * @param req
+	 * @param res
+	 * @throws IOException
 	 */
-	private void compactCache(){
-		for(String image: new HashSet<String>(cache.keySet())){
-			Slide slide = cache.get(image);
-			if(slide.isOld()){
-				slide.dispose();
-				synchronized (cache) {
-					cache.remove(image);
+	private void doList(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		String path = filter(req.getParameter("path"));
+		boolean recurse = Boolean.valueOf(req.getParameter("recurse"));
+		boolean json = "json".equalsIgnoreCase(req.getParameter("format"));
+		
+		DirectoryIndex.Entry dir = (index != null)?index.get(path):null;
+		if(dir == null)
+			dir = DirectoryIndex.load(imageDirectory,path);
+		if(dir == null || !dir.isDirectory()){
+			if(json){
+				res.sendError(HttpServletResponse.SC_NOT_FOUND,"directory "+path+" not found");
+			}else{
+				res.setContentType("text/plain");
+				res.getWriter().write("error");
+			}
+			return;
+		}
+		
+		DirectoryListing listing = new DirectoryListing(dir,recurse);
+		try{
+			listing.setGlob(req.getParameter("glob"));
+		}catch(PatternSyntaxException ex){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,"invalid glob pattern");
+			return;
+		}
+		listing.setCursor(req.getParameter("cursor"));
+		if(req.getParameter("offset") != null)
+			listing.setOffset(Long.parseLong(filterNumber(req.getParameter("offset"))));
+		if(req.getParameter("limit") != null)
+			listing.setLimit(Long.parseLong(filterNumber(req.getParameter("limit"))));
+		
+		if(json){
+			res.setContentType("application/json; charset=UTF-8");
+			listing.writeJSON(res.getWriter());
+		}else{
+			res.setContentType("text/plain");
+			listing.writeText(res.getWriter());
+		}
+	}
+	
+	/**
+	 * handle a batch of region requests for one slide. Regions are rendered in 
+	 * parallel and each tile is written as soon as it is ready as a frame of 
+	 * <index><length><bytes>, where index (int) is position of the region in the 
+	 * request and length (int) is -1 if the tile could not be rendered
+	 * @param req
+	 * @param res
+	 * @throws IOException
+	 */
+	private void doTiles(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		String path = getSlidePath(req.getParameter("path"));
+		String [] regions = (""+req.getParameter("regions")).split(";");
+		if(regions.length > MAX_BATCH_SIZE){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,"too many regions, max is "+MAX_BATCH_SIZE);
+			return;
+		}
+		ImageEncoder.Options options = getEncoderOptions(req);
+		File file = getSlideFile(path);
+		if(!file.exists()){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"file "+path+" doesn't exist");
+			return;
+		}
+		res.setContentType(TILES_CONTENT_TYPE);
+		res.setHeader("X-Tile-Count",""+regions.length);
+		DataOutputStream out = new DataOutputStream(res.getOutputStream());
+		
+		BlockingQueue<Future<byte []>> done = new LinkedBlockingQueue<Future<byte []>>();
+		Map<Future<byte []>,Integer> pending = new HashMap<Future<byte []>,Integer>();
+		try{
+			// cached tiles are written right away, the rest is queued for rendering
+			for(int i=0;i<regions.length;i++){
+				String [] p = regions[i].split(",");
+				if(p.length != 5){
+					writeFrame(out,i,null);
+					continue;
+				}
+				int x,y,w,h,rw;
+				try{
+					x = Integer.parseInt(filterNumber(p[0]));
+					y = Integer.parseInt(filterNumber(p[1]));
+					w = Integer.parseInt(filterNumber(p[2]));
+					h = Integer.parseInt(filterNumber(p[3]));
+					rw = Integer.parseInt(filterNumber(p[4]));
+				}catch(NumberFormatException ex){
+					writeFrame(out,i,null);
+					continue;
+				}
+				
+				// frames are rendered whole, so regions that action=region 
+				// would reject or stream are skipped
+				if(w <= 0 || h <= 0 || rw <= 0){
+					writeFrame(out,i,null);
+					continue;
+				}
+				Dimension size = StripRenderer.getImageSize(w,h,rw);
+				long pixels = (long) size.width*size.height;
+				if((maxImagePixels > 0 && pixels > maxImagePixels) || pixels > streamPixels){
+					writeFrame(out,i,null);
+					continue;
+				}
+				
+				// same key as action=region, so that both share cached tiles
+				String key = getTileKey(file,"region",x,y,w,h,rw,options);
+				byte [] data = tileCache.get(key);
+				if(data != null){
+					writeFrame(out,i,data);
+					continue;
+				}
+				try{
+					pending.put(renderer.submit(createRegionTask(path,key,options,x,y,w,h,rw),done),i);
+				}catch(RenderExecutor.BusyException ex){
+					writeFrame(out,i,null);
+				}
+			}
+			res.flushBuffer();
+			
+			// write rendered tiles in the order they finish
+			long deadline = System.currentTimeMillis()+renderer.getTimeout();
+			while(!pending.isEmpty()){
+				long wait = deadline - System.currentTimeMillis();
+				Future<byte []> future = (wait > 0)?done.poll(wait,TimeUnit.MILLISECONDS):null;
+				if(future == null)
+					break;
+				int i = pending.remove(future);
+				byte [] data = null;
+				try{
+					data = renderer.getResult(future);
+				}catch(IOException ex){
+					log("unable to render tile "+regions[i]+" of "+path+": "+ex.getMessage());
+				}
+				writeFrame(out,i,data);
+				res.flushBuffer();
+			}
+			
+			// tiles that didn't finish in time
+			for(int i: pending.values())
+				writeFrame(out,i,null);
+			out.flush();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}finally{
+			for(Future<byte []> future: pending.keySet())
+				future.cancel(false);
+		}
+	}
+	
+	/**
+	 * start pre-rendering Deep Zoom pyramids of a directory into persistent 
+	 * tile store and/or report progress of the current job
+	 * @param req
+	 * @param res
+	 * @throws IOException
+	 */
+	private void doPyramid(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		if(!isAdmin(req,res))
+			return;
+		if(tileCache.getStore() == null){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"tile store (tile.store.dir) is not configured");
+			return;
+		}
+		final String path = req.getParameter("path");
+		synchronized(this){
+			if(generator == null){
+				int threads = Math.max(1,Runtime.getRuntime().availableProcessors()/2);
+				threads = (int) getNumberParameter(getServletConfig(),"pyramid.threads",threads);
+				generator = new PyramidGenerator(imageDirectory,tileCache.getStore(),encoderOptions,threads,this);
+			}
+			if(Boolean.parseBoolean(req.getParameter("cancel"))){
+				generator.cancel();
+			}else if(path != null && !generator.isRunning()){
+				Thread t = new Thread(new Runnable(){
+					public void run() {
+						try{
+							generator.generate(getSlidePath(path));
+						}catch(Exception ex){
+							log("pyramid generation of "+path+" failed",ex);
+						}
+					}
+				},"PyramidGenerator");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+		res.setContentType("text/plain");
+		generator.getStatistics().store(res.getOutputStream(),"pyramid generation progress");
+	}
+	
+	/**
+	 * check admin token of a request, requests are proxied, 
+	 * so remote address can't tell who sent them
+	 * @param req
+	 * @param res
+	 * @return false if error was sent to client
+	 * @throws IOException
+	 */
+	private boolean isAdmin(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		if(adminToken == null){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"admin actions are disabled, admin.token is not configured");
+			return false;
+		}
+		String token = req.getHeader(ADMIN_TOKEN_HEADER);
+		if(token == null || !MessageDigest.isEqual(adminToken.getBytes("UTF-8"),token.trim().getBytes("UTF-8"))){
+			res.sendError(HttpServletResponse.SC_FORBIDDEN,"admin action requires valid "+ADMIN_TOKEN_HEADER+" header");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * write tile frame of a batch response
+	 * @param out
+	 * @param index - position of region in request
+	 * @param data - encoded tile or null, if it could not be rendered
+	 * @throws IOException
+	 */
+	private void writeFrame(DataOutputStream out, int index, byte [] data) throws IOException {
+		out.writeInt(index);
+		out.writeInt((data != null)?data.length:-1);
+		if(data != null)
+			out.write(data);
+	}
+	
+	/**
+	 * export slide region as tiled BigTIFF. The file is written to a temporary
+	 * file tile by tile and then sent to client, since TIFF directories can only
+	 * be written once all tiles are compressed. Parameters: x, y, width, height
+	 * (whole slide if not set), level, compression=jpeg|deflate, pyramid=true|false
+	 * and JPEG quality and subsampling
+	 * @param req
+	 * @param res
+	 * @throws IOException
+	 */
+	private void doExport(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		String path = getSlidePath(req.getParameter("path"));
+		File file = getSlideFile(path);
+		if(!file.exists()){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"file "+path+" doesn't exist");
+			return;
+		}
+		long x,y,w,h;
+		int level;
+		try{
+			x = Long.parseLong(filterNumber(req.getParameter("x")));
+			y = Long.parseLong(filterNumber(req.getParameter("y")));
+			w = Long.parseLong(filterNumber(req.getParameter("width")));
+			h = Long.parseLong(filterNumber(req.getParameter("height")));
+			level = Integer.parseInt(filterNumber(req.getParameter("level")));
+		}catch(NumberFormatException ex){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,"invalid region "+ex.getMessage());
+			return;
+		}
+		String compression = req.getParameter("compression");
+		
+		if(!exports.tryAcquire()){
+			sendBusy(res,new RenderExecutor.BusyException("too many exports are running",STREAM_RETRY_AFTER));
+			return;
+		}
+		SlideCache.Lease lease = null;
+		File tiff = null;
+		try{
+			lease = leaseSlide(path);
+			Slide slide = lease.getSlide();
+			if(w <= 0 || h <= 0){
+				x = y = 0;
+				w = slide.getLevelWidth(0);
+				h = slide.getLevelHeight(0);
+			}
+			TiffExporter exporter = new TiffExporter(slide,x,y,w,h,level);
+			if(compression != null && compression.trim().length() > 0)
+				exporter.setCompression(compression.trim());
+			exporter.setEncoderOptions(getEncoderOptions(req));
+			exporter.setPyramid(Boolean.parseBoolean(req.getParameter("pyramid")));
+			exporter.setDescription(slide.getName()+" region "+x+","+y+" "+w+"x"+h+" level "+level);
+			if(maxExportPixels > 0 && (long)exporter.getWidth()*exporter.getHeight() > maxExportPixels){
+				res.sendError(HttpServletResponse.SC_BAD_REQUEST,"exported image is too large, max is "+maxExportPixels+" pixels");
+				return;
+			}
+			
+			tiff = File.createTempFile("export",".tif",exportDirectory);
+			exporter.write(tiff,exportExecutor,exportThreads);
+			
+			String name = file.getName();
+			if(name.lastIndexOf('.') > 0)
+				name = name.substring(0,name.lastIndexOf('.'));
+			res.setContentType("image/tiff");
+			res.setHeader("Content-Length",""+tiff.length());
+			res.setHeader("Content-Disposition","attachment; filename=\""+name.replace('"','_')+".tif\"");
+			OutputStream out = res.getOutputStream();
+			InputStream in = new FileInputStream(tiff);
+			try{
+				byte [] buffer = new byte [64*1024];
+				for(int n = in.read(buffer);n > -1;n = in.read(buffer))
+					out.write(buffer,0,n);
+			}finally{
+				in.close();
+			}
+		}catch(IllegalArgumentException ex){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,ex.getMessage());
+		}catch(RenderExecutor.BusyException ex){
+			sendBusy(res,ex);
+		}catch(IOException ex){
+			// part of the file was sent, so error can't be reported to client
+			if(res.isCommitted()){
+				log("unable to export "+path,ex);
+			}else{
+				res.reset();
+				res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"error: "+ex.getMessage());
+			}
+		}finally{
+			if(lease != null)
+				lease.release();
+			if(tiff != null)
+				tiff.delete();
+			exports.release();
+		}
+	}
+	
+	/**
+	 * create task that renders a region
+	 * @param path - slide path relative to image directory
+	 * @param key - tile cache key
+	 * @param options - encoder options
+	 * @return
+	 */
+	private ImageTask createRegionTask(String path, String key, ImageEncoder.Options options, 
+			final int x, final int y, final int w, final int h, final int size){
+		return new ImageTask(path,key,options){
+			protected BufferedImage render(Slide slide) throws IOException {
+				return slide.getRegion(x,y,w,h,size);
+			}
+		};
+	}
+	
+	/**
+	 * handle Deep Zoom request, the path is either <slide path>.dzi for 
+	 * image descriptor or <slide path>_files/<level>/<col>_<row>.jpg for a tile
+	 * @param req
+	 * @param res
+	 * @throws IOException
+	 */
+	private void doDeepZoom(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		String info = ""+req.getPathInfo();
+		if(info.startsWith("/"))
+			info = info.substring(1);
+		
+		SlideCache.Lease lease = null;
+		try{
+			if(info.endsWith(".dzi")){
+				String path = info.substring(0,info.length()-".dzi".length()).replace('/',File.separatorChar);
+				File file = getSlideFile(path);
+				String etag = getETag(getTileKey(file,"dzi",DeepZoom.TILE_SIZE,DeepZoom.OVERLAP,DeepZoom.FORMAT));
+				if(isNotModified(req,res,file,etag))
+					return;
+				lease = leaseSlide(path);
+				DeepZoom dz = new DeepZoom(lease.getSlide());
+				setCacheHeaders(res,file,etag);
+				res.setContentType("application/xml");
+				res.getWriter().write(dz.getDescriptor());
+			}else if(info.contains("_files/")){
+				int i = info.lastIndexOf("_files/");
+				String path = info.substring(0,i).replace('/',File.separatorChar);
+				String [] tile = info.substring(i+"_files/".length()).split("[/_\\.]");
+				if(tile.length != 4 || !DeepZoom.FORMAT.equals(tile[3])){
+					res.sendError(HttpServletResponse.SC_NOT_FOUND,"invalid tile "+info);
+					return;
+				}
+				final int level = Integer.parseInt(tile[0]);
+				final int col = Integer.parseInt(tile[1]);
+				final int row = Integer.parseInt(tile[2]);
+				
+				// check encoded tile cache first
+				ImageEncoder.Options options = getEncoderOptions(req);
+				File file = getSlideFile(path);
+				String key = getTileKey(file,"dzi",DeepZoom.TILE_SIZE,DeepZoom.OVERLAP,level,col,row,options);
+				String etag = getETag(key);
+				if(isNotModified(req,res,file,etag))
+					return;
+				byte [] data = tileCache.get(key);
+				if(data == null){
+					final String name = info;
+					data = renderer.execute(new ImageTask(path,key,options){
+						protected BufferedImage render(Slide slide) throws IOException {
+							DeepZoom dz = new DeepZoom(slide);
+							if(!dz.isValid(level,col,row))
+								throw new FileNotFoundException("invalid tile "+name);
+							return dz.getTile(level,col,row);
+						}
+					});
+				}
+				setCacheHeaders(res,file,etag);
+				write(res,data,options.getContentType());
+			}else{
+				res.sendError(HttpServletResponse.SC_NOT_FOUND,"invalid Deep Zoom path "+info);
+			}
+		}catch(NumberFormatException ex){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"invalid tile "+info);
+		}catch(RenderExecutor.BusyException ex){
+			sendBusy(res,ex);
+		}catch(IOException ex){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"error: "+ex.getMessage());
+		}finally{
+			if(lease != null)
+				lease.release();
+		}
+	}
+	
+	/**
+	 * handle IIIF Image API request, the path is either <slide path>/info.json
+	 * or <slide path>/<region>/<size>/<rotation>/<quality>.<format>
+	 * @param req
+	 * @param res
+	 * @throws IOException
+	 */
+	private void doIIIF(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		final IIIFRequest iiif;
+		try{
+			iiif = IIIFRequest.parse(""+req.getPathInfo());
+		}catch(IllegalArgumentException ex){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,ex.getMessage());
+			return;
+		}
+		String path = iiif.getIdentifier().replace('/',File.separatorChar);
+		String id = getServiceURL(req)+"/"+encodePath(iiif.getIdentifier());
+		res.setHeader("Access-Control-Allow-Origin","*");
+		
+		// IIIF format comes from the path, the rest from server defaults
+		ImageEncoder.Options options = new ImageEncoder.Options(encoderOptions);
+		if(!iiif.isInfo())
+			options.setFormat(iiif.getFormat());
+		
+		// the request path identifies the response, before it is resolved against the slide
+		File file = getSlideFile(path);
+		String etag = getETag(getTileKey(file,"iiif",req.getPathInfo(),(iiif.isInfo())?id:options));
+		if(isNotModified(req,res,file,etag))
+			return;
+		
+		SlideCache.Lease lease = null;
+		try{
+			lease = leaseSlide(path);
+			Slide slide = lease.getSlide();
+			if(iiif.isInfo()){
+				setCacheHeaders(res,file,etag);
+				res.setContentType("application/ld+json;profile=\""+IIIFRequest.CONTEXT+"\"");
+				res.getWriter().write(IIIFRequest.getInfo(slide,id));
+				return;
+			}
+			long w = slide.getLevelWidth(0);
+			long h = slide.getLevelHeight(0);
+			iiif.resolve(w,h);
+			String canonical = iiif.getCanonicalRequest(w,h);
+			res.setHeader("Link","<"+id+"/"+canonical+">;rel=\"canonical\"");
+			
+			// output is at most IIIFRequest.MAX_SIZE, but on slides with few levels 
+			// the native read behind it is not, so it is limited like action=region
+			if(isTooLarge(res,iiif.getReadSize(slide)))
+				return;
+			
+			// check encoded tile cache first
+			String key = getTileKey(file,"iiif",canonical,options);
+			byte [] data = tileCache.get(key);
+			if(data == null){
+				data = renderer.execute(new ImageTask(path,key,options){
+					protected BufferedImage render(Slide slide) throws IOException {
+						return iiif.render(slide);
+					}
+				});
+			}
+			setCacheHeaders(res,file,etag);
+			write(res,data,iiif.getContentType());
+		}catch(IllegalArgumentException ex){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,ex.getMessage());
+		}catch(RenderExecutor.BusyException ex){
+			sendBusy(res,ex);
+		}catch(IOException ex){
+			res.sendError(HttpServletResponse.SC_NOT_FOUND,"error: "+ex.getMessage());
+		}finally{
+			if(lease != null)
+				lease.release();
+		}
+	}
+	
+	/**
+	 * get absolute URL of the servlet path that handled this request
+	 * @param req
+	 * @return
+	 */
+	private String getServiceURL(HttpServletRequest req){
+		String scheme = req.getScheme();
+		int port = req.getServerPort();
+		boolean defaultPort = ("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443);
+		return scheme+"://"+req.getServerName()+((defaultPort)?"":":"+port)+req.getContextPath()+req.getServletPath();
+	}
+	
+	/**
+	 * URL encode path, while keeping path separators
+	 * @param path
+	 * @return
+	 */
+	private String encodePath(String path){
+		StringBuffer b = new StringBuffer();
+		for(String p: path.split("/")){
+			try {
+				b.append(((b.length() > 0)?"/":"")+URLEncoder.encode(p,"utf-8").replace("+","%20"));
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+			}
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * get key that uniquely identifies an image response for a given 
+	 * version of a slide file
+	 * @param file - slide file
+	 * @param params - request parameters that effect the response
+	 * @return
+	 */
+	private String getTileKey(File file, Object ... params){
+		return TileCache.getKey(file,params);
+	}
+	
+	/**
+	 * get JPEG encoder options for this request, quality, subsampling
+	 * and progressive parameters overwrite server defaults
+	 * @param req
+	 * @return
+	 */
+	private ImageEncoder.Options getEncoderOptions(HttpServletRequest req){
+		ImageEncoder.Options options = new ImageEncoder.Options(encoderOptions);
+		String quality = req.getParameter("quality");
+		if(quality != null && quality.trim().length() > 0){
+			try{
+				options.setQuality(Integer.parseInt(quality.trim()));
+			}catch(NumberFormatException ex){
+				log("invalid value of quality parameter: "+quality);
+			}
+		}
+		setEncoderOptions(options,req.getParameter("subsampling"),req.getParameter("progressive"));
+		return options;
+	}
+	
+	/**
+	 * set chroma subsampling and progressive mode, invalid values are ignored
+	 * @param options
+	 * @param subsampling
+	 * @param progressive
+	 */
+	private void setEncoderOptions(ImageEncoder.Options options, String subsampling, String progressive){
+		if(subsampling != null && subsampling.trim().length() > 0){
+			try{
+				options.setSubsampling(subsampling.trim());
+			}catch(IllegalArgumentException ex){
+				log(ex.getMessage());
+			}
+		}
+		if(progressive != null && progressive.trim().length() > 0)
+			options.setProgressive(Boolean.parseBoolean(progressive.trim()));
+	}
+	
+	/**
+	 * get strong entity tag for a response identified by a given key
+	 * (see getTileKey())
+	 * @param key
+	 * @return
+	 */
+	private String getETag(String key){
+		try{
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte [] digest = md.digest(key.getBytes("utf-8"));
+			StringBuffer b = new StringBuffer("\"");
+			for(byte d: digest)
+				b.append(Integer.toHexString((d & 0xFF) | 0x100).substring(1));
+			return b.append("\"").toString();
+		}catch(NoSuchAlgorithmException ex){
+			throw new RuntimeException(ex);
+		}catch(UnsupportedEncodingException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * check If-None-Match and If-Modified-Since request headers and send
+	 * 304 Not Modified if the client already has this response
+	 * @param req
+	 * @param res
+	 * @param file - slide file
+	 * @param etag - entity tag of the response
+	 * @return true if 304 response was sent
+	 */
+	private boolean isNotModified(HttpServletRequest req, HttpServletResponse res, File file, String etag){
+		return isNotModified(req,res,file,etag,true);
+	}
+	
+	/**
+	 * check If-None-Match and If-Modified-Since request headers and send
+	 * 304 Not Modified if the client already has this response
+	 * @param req
+	 * @param res
+	 * @param file - slide file
+	 * @param etag - entity tag of the response
+	 * @param dated - false if response can change without slide file changing,
+	 * then it is only validated by its entity tag
+	 * @return true if 304 response was sent
+	 */
+	private boolean isNotModified(HttpServletRequest req, HttpServletResponse res, File file, String etag, boolean dated){
+		if(!file.exists())
+			return false;
+		boolean notModified = false;
+		String match = req.getHeader("If-None-Match");
+		if(match != null){
+			for(String tag: match.split(",")){
+				tag = tag.trim();
+				if(tag.startsWith("W/"))
+					tag = tag.substring(2);
+				if(tag.equals("*") || tag.equals(etag)){
+					notModified = true;
+					break;
+				}
+			}
+		}else if(dated){
+			// If-Modified-Since is only considered without If-None-Match
+			try{
+				long since = req.getDateHeader("If-Modified-Since");
+				notModified = since >= 0 && file.lastModified()/1000 <= since/1000;
+			}catch(IllegalArgumentException ex){
+				// ignore malformed dates
+			}
+		}
+		if(notModified){
+			setCacheHeaders(res,file,etag,dated);
+			res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}
+		return notModified;
+	}
+	
+	/**
+	 * set ETag, Last-Modified and Cache-Control headers of image response
+	 * @param res
+	 * @param file - slide file
+	 * @param etag - entity tag of the response
+	 */
+	private void setCacheHeaders(HttpServletResponse res, File file, String etag){
+		setCacheHeaders(res,file,etag,true);
+	}
+	
+	/**
+	 * set ETag, Cache-Control and optionally Last-Modified headers of image response
+	 * @param res
+	 * @param file - slide file
+	 * @param etag - entity tag of the response
+	 * @param dated - false if response can change without slide file changing
+	 */
+	private void setCacheHeaders(HttpServletResponse res, File file, String etag, boolean dated){
+		res.setHeader("ETag",etag);
+		if(dated)
+			res.setDateHeader("Last-Modified",file.lastModified());
+		res.setHeader("Cache-Control","max-age="+maxAge);
+	}
+	
+	/**
+	 * get label policy for a given slide, it is part of label and macro
+	 * response keys, since suppressing labels doesn't change the slide file
+	 * @param file
+	 * @return
+	 */
+	private String getLabelPolicy(File file){
+		return (isLabelAllowed(file))?"label":"nolabel";
+	}
+	
+	/**
+	 * can label of a given slide be shown, labels are suppressed globally
+	 * or by a marker file in slide directory
+	 * @param file
+	 * @return
+	 */
+	private boolean isLabelAllowed(File file){
+		if(supressLabels)
+			return false;
+		File marker = new File(file.getParentFile(),Slide.NO_LABEL);
+		Boolean exists = (index != null)?index.exists(marker):null;
+		return !((exists != null)?exists:marker.exists());
+	}
+	
+	/**
+	 * check that requested image is not larger then allowed
+	 * @param res
+	 * @param pixels - number of pixels in requested image
+	 * @return true if error was sent to client
+	 * @throws IOException
+	 */
+	private boolean isTooLarge(HttpServletResponse res, long pixels) throws IOException {
+		if(maxImagePixels > 0 && pixels > maxImagePixels){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,"requested image is too large, max is "+maxImagePixels+" pixels");
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * send error if requested image exceeds max size, or if it can't
+	 * be streamed and exceeds size of images that are rendered whole
+	 * @param res
+	 * @param pixels
+	 * @param options
+	 * @return true if error was sent
+	 * @throws IOException
+	 */
+	private boolean isTooLarge(HttpServletResponse res, long pixels, ImageEncoder.Options options) throws IOException {
+		if(isTooLarge(res,pixels))
+			return true;
+		if(!options.isJPEG() && pixels > streamPixels){
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST,"requested "+options.getFormat()+" image is too large, max is "+streamPixels+" pixels");
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * stream large JPEG image of a slide region, it is rendered and encoded 
+	 * in strips on the request thread, so memory used doesn't depend on image size.
+	 * Only a few images are streamed at once, since each keeps a thread busy for a while
+	 * @param res
+	 * @param path - slide path relative to image directory
+	 * @param file - slide file
+	 * @param etag
+	 * @param options - JPEG options
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param width - region width in absolute coordinates, 0 for the whole slide
+	 * @param height - region height in absolute coordinates, 0 for the whole slide
+	 * @param size - size of the longer side of output image
+	 * @throws IOException
+	 */
+	private void stream(HttpServletResponse res, String path, File file, String etag, ImageEncoder.Options options, 
+			int x, int y, int width, int height, int size) throws IOException {
+		if(!streams.tryAcquire())
+			throw new RenderExecutor.BusyException("too many large images are being streamed",STREAM_RETRY_AFTER);
+		SlideCache.Lease lease = null;
+		try{
+			lease = leaseSlide(path);
+			Slide slide = lease.getSlide();
+			if(width <= 0 || height <= 0){
+				width = (int) slide.getLevelWidth(0);
+				height = (int) slide.getLevelHeight(0);
+			}
+			StripRenderer strips = new StripRenderer(slide,x,y,width,height,size);
+			setCacheHeaders(res,file,etag);
+			res.setContentType(options.getContentType());
+			try{
+				ImageEncoder.encode(strips,options,res.getOutputStream());
+			}catch(IOException ex){
+				// part of the image was sent, so error can't be reported to client
+				if(!res.isCommitted()){
+					res.reset();
+					throw ex;
 				}
+				log("unable to stream image of "+path,ex);
 			}
+		}finally{
+			if(lease != null)
+				lease.release();
+			streams.release();
 		}
-		System.gc();
 	}
 	
 	/**
-	 * get slide
+	 * write encoded image to response
+	 * @param res
+	 * @param data
+	 * @param type
+	 * @throws IOException
+	 */
+	private void write(HttpServletResponse res, byte [] data, String type) throws IOException {
+		res.setContentType(type);
+		res.setContentLength(data.length);
+		res.getOutputStream().write(data);
+	}
+	
+	/**
+	 * get slide path relative to image directory from 
+	 * request parameter
 	 * @param path
 	 * @return
 	 */
-	private Slide getSlide(String path) throws IOException {
-		path = filter(path).replace('/',File.separatorChar);
-		Slide slide = cache.get(path);
-		if(slide == null){
-			File file = getFile(imageDirectory,path);
-			// check for file
-			if(!file.exists() || !file.canRead() || !file.isFile())
-				throw new IOException ("file "+file+" cannot be accessed.");
-			// now check on what type of image to open
-			if(OpenSlideImage.isValid(file.getAbsolutePath()))
-				slide = new OpenSlideImage(file);
-			else
-				slide = new ImageJImage(file);
-			slide.setLabelAllowed(!supressLabels);
-			synchronized (cache) {
-				cache.put(path,slide);
+	private String getSlidePath(String path){
+		return filter(path).replace('/',File.separatorChar);
+	}
+	
+	/**
+	 * get slide, the returned lease has to be released
+	 * when request is done with the slide
+	 * @param path - slide path relative to image directory
+	 * @return
+	 */
+	private SlideCache.Lease acquireSlide(String path) throws IOException {
+		return cache.acquire(path,slideLoader);
+	}
+	
+	/**
+	 * get slide for a request that is handled on the request thread,
+	 * slides that are not open yet are opened on a render thread, so that
+	 * slow opens don't tie up request threads. The lease the render thread 
+	 * gets is handed over to the request, so the slide can't be closed in between
+	 * @param path - slide path relative to image directory
+	 * @return
+	 * @throws IOException
+	 */
+	private SlideCache.Lease leaseSlide(final String path) throws IOException {
+		SlideCache.Lease lease = cache.get(path);
+		if(lease != null)
+			return lease;
+		
+		final AtomicReference<Object> handoff = new AtomicReference<Object>();
+		boolean done = false;
+		try{
+			renderer.execute(new Callable<Object>(){
+				public Object call() throws Exception {
+					SlideCache.Lease lease = acquireSlide(path);
+					if(!handoff.compareAndSet(null,lease))
+						lease.release();
+					return null;
+				}
+			});
+			done = true;
+		}finally{
+			// a task that finishes after the request gave up releases its own lease
+			Object result = handoff.getAndSet(Boolean.FALSE);
+			if(result instanceof SlideCache.Lease){
+				lease = (SlideCache.Lease) result;
+				if(!done)
+					lease.release();
+			}
+		}
+		if(lease == null)
+			throw new IOException("unable to open slide "+path);
+		return lease;
+	}
+	
+	/**
+	 * renders and encodes an image on a render thread, the task holds 
+	 * its own lease on the slide, since it can outlive the request that
+	 * started it, and puts the result into tile cache
+	 */
+	private abstract class ImageTask implements Callable<byte []> {
+		private final String path, key;
+		private final ImageEncoder.Options options;
+		
+		/**
+		 * @param path - slide path relative to image directory
+		 * @param key - tile cache key or null, if result should not be cached
+		 * @param options - encoder options
+		 */
+		public ImageTask(String path, String key, ImageEncoder.Options options){
+			this.path = path;
+			this.key = key;
+			this.options = options;
+		}
+		
+		public byte [] call() throws Exception {
+			SlideCache.Lease lease = acquireSlide(path);
+			try{
+				// failed renders are never cached
+				BufferedImage img = render(lease.getSlide());
+				if(img == null)
+					throw new IOException("unable to render image of "+path);
+				byte [] data = ImageEncoder.encode(img,options);
+				if(key != null)
+					tileCache.put(key,data);
+				return data;
+			}finally{
+				lease.release();
+			}
+		}
+		
+		/**
+		 * render image
+		 * @param slide
+		 * @return
+		 * @throws IOException
+		 */
+		protected abstract BufferedImage render(Slide slide) throws IOException;
+	}
+	
+	/**
+	 * let prefetcher know about a region request
+	 * @param req
+	 * @param tile - requested tile
+	 * @param key - tile cache key of requested tile
+	 */
+	private void prefetch(HttpServletRequest req, TilePrefetcher.Tile tile, String key){
+		if(prefetcher != null)
+			prefetcher.request(getClientId(req),tile,key);
+	}
+	
+	/**
+	 * identify viewer a request came from, the server normally runs behind
+	 * a proxy, so remote address is the same for everyone
+	 * @param req
+	 * @return session id, original client address or remote address
+	 */
+	private String getClientId(HttpServletRequest req){
+		String session = req.getRequestedSessionId();
+		if(session != null && session.length() > 0)
+			return "session:"+session;
+		// first address is the client, the rest are proxies
+		String forwarded = req.getHeader("X-Forwarded-For");
+		if(forwarded != null){
+			String client = forwarded.split(",")[0].trim();
+			if(client.length() > 0)
+				return client;
+		}
+		return req.getRemoteAddr();
+	}
+	
+	/**
+	 * renders prefetched region tiles, but only for slides that are still open
+	 */
+	private final TilePrefetcher.Renderer prefetchRenderer = new TilePrefetcher.Renderer(){
+		public String getKey(TilePrefetcher.Tile tile) {
+			return getTileKey(getSlideFile(tile.path),"region",tile.x,tile.y,tile.width,tile.height,tile.size,tile.options);
+		}
+		public boolean render(TilePrefetcher.Tile tile, String key) throws Exception {
+			SlideCache.Lease lease = cache.get(tile.path);
+			if(lease == null)
+				return false;
+			try{
+				Slide slide = lease.getSlide();
+				if(tile.x >= slide.getLevelWidth(0) || tile.y >= slide.getLevelHeight(0))
+					return false;
+				BufferedImage img = slide.getRegion(tile.x,tile.y,tile.width,tile.height,tile.size);
+				tileCache.put(key,ImageEncoder.encode(img,tile.options));
+				return true;
+			}finally{
+				lease.release();
+			}
+		}
+	};
+	
+	/**
+	 * tell client that server is too busy to render its request
+	 * @param res
+	 * @param ex
+	 * @throws IOException
+	 */
+	private void sendBusy(HttpServletResponse res, RenderExecutor.BusyException ex) throws IOException {
+		res.setHeader("Retry-After",""+ex.getRetryAfter());
+		res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,ex.getMessage());
+	}
+	
+	/**
+	 * opens slides that are not in cache
+	 */
+	private final SlideCache.Loader slideLoader = new SlideCache.Loader(){
+		public Slide load(String path) throws IOException {
+			Slide slide = openSlide(path);
+			File file = getSlideFile(path);
+			if(!metadata.contains(file))
+				metadata.put(file,slide.getSlideInfo());
+			return slide;
+		}
+	};
+	
+	/**
+	 * renders thumbnails for background scanner, slides that are not 
+	 * in cache are opened just for that, so they don't push others out
+	 */
+	private final ThumbnailStore.Renderer thumbnailRenderer = new ThumbnailStore.Renderer(){
+		public BufferedImage render(String path, int size) throws IOException {
+			SlideCache.Lease lease = cache.get(path);
+			Slide slide = (lease != null)?lease.getSlide():openSlide(path);
+			try{
+				// slide is open anyway
+				File file = getSlideFile(path);
+				if(!metadata.contains(file))
+					metadata.put(file,slide.getSlideInfo());
+				return slide.getThumbnail(size);
+			}finally{
+				if(lease != null)
+					lease.release();
+				else
+					slide.dispose();
 			}
 		}
+	};
+	
+	/**
+	 * gets metadata for background scanner, slides that are not in 
+	 * cache are opened just for that, so they don't push others out
+	 */
+	private final MetadataStore.Loader metadataLoader = new MetadataStore.Loader(){
+		public Properties load(String path) throws IOException {
+			SlideCache.Lease lease = cache.get(path);
+			if(lease != null){
+				try{
+					return lease.getSlide().getSlideInfo();
+				}finally{
+					lease.release();
+				}
+			}
+			Slide slide = openSlide(path);
+			try{
+				return slide.getSlideInfo();
+			}finally{
+				slide.dispose();
+			}
+		}
+	};
+	
+	/**
+	 * open slide
+	 * @param path
+	 * @return
+	 */
+	private Slide openSlide(String path) throws IOException {
+		File file = getSlideFile(path);
+		// check for file
+		if(!file.exists() || !file.canRead() || !file.isFile())
+			throw new IOException ("file "+file+" cannot be accessed.");
+		// now check on what type of image to open
+		Slide slide;
+		if(OpenSlideImage.isValid(file.getAbsolutePath()))
+			slide = new OpenSlideImage(file);
+		else
+			slide = new ImageJImage(file);
+		slide.setLabelAllowed(isLabelAllowed(file));
 		return slide;
 	}
 	
+	/**
+	 * get slide file
+	 * @param path - slide path relative to image directory
+	 * @return
+	 */
+	private File getSlideFile(String path){
+		if(index != null){
+			File file = index.find(path);
+			if(file != null)
+				return file;
+		}
+		return getFile(imageDirectory,path);
+	}
+	
 	/**
 	 * get file from parent and path
 	 * this takes care of funny URL ecnoding/decoding issues
@@ -283,52 +1657,20 @@ public class OpenSlideServer extends HttpServlet {
 	}
 
 	
-	/**
-	 * list content of director
-	 * @param filename
-	 * @return
-	 */
-	private String list(File file){
-		if(file.isDirectory()){
-			StringBuffer buffer = new StringBuffer();
-			for(File f: file.listFiles()){
-				if(!f.isHidden() && !f.getName().startsWith("."))
-					buffer.append(f.getName()+((f.isDirectory())?"/":"")+"\n");
-			}
-			return buffer.toString();
-		}
-		return "error";
-	}
-	
-	/**
-	 * list content of director
-	 * @param filename
-	 * @return
-	 */
-	private String listRecursive(File file, String prefix){
-		if(file.isDirectory()){
-			StringBuffer buffer = new StringBuffer();
-			for(File f: file.listFiles()){
-				if(!f.isHidden() && !f.getName().startsWith(".")){
-					if(f.isDirectory()){
-						buffer.append(listRecursive(f,prefix+f.getName()+"/"));
-					}else
-						buffer.append(prefix+f.getName()+"\n");
-				}
-			}
-			return buffer.toString();
-		}
-		return "error";
-	}
-	
-	
 	/**
 	 * print usage of this servlet
 	 * @param out
 	 */
 	private void printUsage(PrintWriter out){
 		out.write("\n\nUsage: ?action=<action>&path=<image path>[&options]\n");
+		out.write("\tlist  - list content of [path] directory, optionally specify [recurse=true] to list all files in it\n");
+		out.write("\t\tformat - json to get entries with type, size and modification time\n");
+		out.write("\t\tglob   - only list files that match pattern, f.e. *.{svs,tif}\n");
+		out.write("\t\toffset - number of entries to skip (integer)\n");
+		out.write("\t\tlimit  - max number of entries to list (integer)\n");
+		out.write("\t\tcursor - continue listing after this entry, JSON listing has next cursor when limit was reached\n");
 		out.write("\tinfo  - display image meta-data\n");
+		out.write("\tstats - display server cache statistics\n");
 		out.write("\tfile  - display a normal image file, not digital slide\n");
 		out.write("\timage - display image thumbnail,optionally specify parameter [size]\n");
 		out.write("\tlabel - display image label,optionally specify parameter [size]\n");
@@ -338,7 +1680,27 @@ public class OpenSlideServer extends HttpServlet {
 		out.write("\t\ty - region y offset in absolute image coordinates (integer)\n");
 		out.write("\t\twidth  - region width in absolute image coordinates (integer)\n");
 		out.write("\t\theight - region height in absolute image coordinates (integer)\n");
-		out.write("\t\tsize   - size of region in relative screen coordinates (integer)\n\n");
+		out.write("\t\tsize   - size of region in relative screen coordinates (integer)\n");
+		out.write("\t\tlarge JPEG regions are streamed in strips, max image size is limited by image.max.pixels\n");
+		out.write("\t\tother formats are limited by image.stream.threshold\n");
+		out.write("\ttiles - display several regions of one slide in a single response\n");
+		out.write("\t\tregions - list of <x>,<y>,<width>,<height>,<size> separated by ';'\n");
+		out.write("\t\tresponse is a sequence of <index><length><image> frames (index and length are 4 byte integers),\n");
+		out.write("\t\tin the order tiles are ready, length is -1 if region could not be rendered\n");
+		out.write("\texport - download region as tiled BigTIFF\n");
+		out.write("\t\tx, y, width, height - region in absolute image coordinates, whole image if not set\n");
+		out.write("\t\tlevel - native pyramid level that is exported (integer)\n");
+		out.write("\t\tcompression - jpeg (default) or deflate, pyramid - add reduced resolution levels (true/false)\n");
+		out.write("\tpyramid - pre-render Deep Zoom tiles of all slides in [path] directory into tile store and report progress,\n");
+		out.write("\t\trequires "+ADMIN_TOKEN_HEADER+" header with admin.token, add cancel=true to stop it\n");
+		out.write("\tJPEG options for file, image, label, macro, region, export and Deep Zoom tiles\n");
+		out.write("\t\tquality     - JPEG quality 1-100 (integer)\n");
+		out.write("\t\tsubsampling - chroma subsampling 444, 422 or 420\n");
+		out.write("\t\tprogressive - progressive JPEG (true/false)\n\n");
+		out.write("Deep Zoom: dzi/<image path>.dzi - Deep Zoom image descriptor\n");
+		out.write("\tdzi/<image path>_files/<level>/<col>_<row>.jpg - Deep Zoom tile\n\n");
+		out.write("IIIF: iiif/<image path>/info.json - IIIF Image API 3.0 image information\n");
+		out.write("\tiiif/<image path>/<region>/<size>/<rotation>/<quality>.<format> - IIIF image request\n\n");
 		out.write("NOTES:\nAll values for [size] parameter, indicate greatest dimension,");
 		out.write(" the remaining dimension is determined by aspect ratio.\n");
 		out.write("Image label may be suppressed when "+Slide.NO_LABEL+" file ");
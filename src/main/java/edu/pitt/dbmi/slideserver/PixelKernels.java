@@ -0,0 +1,223 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *  per-pixel kernels on packed int rasters: compositing premultiplied ARGB 
+ *  onto white background, 2x2 box reduction and RGB to YCbCr conversion.
+ *  This class is the scalar implementation. A SIMD implementation that uses
+ *  jdk.incubator.vector (VectorPixelKernels) is compiled separately and is 
+ *  picked up at startup, if it is on classpath and the JVM runs with
+ *  --add-modules jdk.incubator.vector. It is only used if it produces the
+ *  same results as scalar kernels in a self check
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class PixelKernels {
+	private static final String VECTOR_KERNELS = "edu.pitt.dbmi.slideserver.VectorPixelKernels";
+	private static boolean vectorEnabled = true;
+	private static PixelKernels instance;
+	private static String warning;
+	
+	/**
+	 * allow or disallow SIMD kernels, has to be called before kernels are used
+	 * @param b
+	 */
+	public static void setVectorEnabled(boolean b){
+		vectorEnabled = b;
+	}
+	
+	/**
+	 * get kernels that are used by this JVM
+	 * @return
+	 */
+	public static synchronized PixelKernels getInstance(){
+		if(instance == null)
+			instance = load();
+		return instance;
+	}
+	
+	/**
+	 * get reason SIMD kernels were not used, if they should have been, 
+	 * it is reported by whoever loads the kernels
+	 * @return null if there is nothing to report
+	 */
+	public static synchronized String getWarning(){
+		return warning;
+	}
+	
+	/**
+	 * load SIMD kernels, if they are available and pass self check
+	 * @return
+	 */
+	private static PixelKernels load(){
+		PixelKernels scalar = new PixelKernels();
+		if(!vectorEnabled)
+			return scalar;
+		try{
+			PixelKernels k = (PixelKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+			if(check(k,scalar))
+				return k;
+			warning = "SIMD pixel kernels failed self check, using scalar kernels";
+		}catch(ClassNotFoundException ex){
+			//NOOP: SIMD kernels were not built
+		}catch(Throwable ex){
+			// vector module is not available in this JVM
+		}
+		return scalar;
+	}
+	
+	/**
+	 * compare results of kernels with scalar kernels on random data,
+	 * sizes are chosen so that both full vectors and tails are exercised
+	 * @param k
+	 * @param scalar
+	 * @return true if results are the same
+	 */
+	static boolean check(PixelKernels k, PixelKernels scalar){
+		Random r = new Random(1);
+		for(int n: new int [] {1,7,64,1001}){
+			int [] argb = new int [n+3];
+			for(int i=0;i<argb.length;i++){
+				// premultiplied pixels, color components never exceed alpha
+				int a = (i % 5 == 0)?255:r.nextInt(256);
+				argb[i] = (a << 24) | (r.nextInt(a+1) << 16) | (r.nextInt(a+1) << 8) | r.nextInt(a+1);
+			}
+			int [] a1 = argb.clone(), a2 = argb.clone();
+			k.compositeOnWhite(a1,3,n);
+			scalar.compositeOnWhite(a2,3,n);
+			if(!Arrays.equals(a1,a2))
+				return false;
+			
+			byte [][] y1 = new byte [3][n+2], y2 = new byte [3][n+2];
+			k.toYCbCr(argb,3,n,y1[0],y1[1],y1[2],2);
+			scalar.toYCbCr(argb,3,n,y2[0],y2[1],y2[2],2);
+			for(int i=0;i<3;i++){
+				if(!Arrays.equals(y1[i],y2[i]))
+					return false;
+			}
+			
+			// odd sizes drop the last row and column
+			int w = n+2, h = 5;
+			int [] src = new int [w*h];
+			for(int i=0;i<src.length;i++)
+				src[i] = r.nextInt();
+			int [] h1 = new int [(w/2)*(h/2)], h2 = new int [(w/2)*(h/2)];
+			k.halve(src,w,h,h1);
+			scalar.halve(src,w,h,h2);
+			if(!Arrays.equals(h1,h2))
+				return false;
+			// in place
+			int [] s1 = src.clone();
+			k.halve(s1,w,h,s1);
+			for(int i=0;i<h2.length;i++){
+				if(s1[i] != h2[i])
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * get name of kernel implementation
+	 * @return
+	 */
+	public String getName(){
+		return "scalar";
+	}
+	
+	/**
+	 * composite premultiplied ARGB pixels onto white background in place,
+	 * since color components don't exceed alpha, adding (255-alpha) to 
+	 * every component can't overflow into the next one
+	 * @param argb - premultiplied pixels
+	 * @param offset - first pixel
+	 * @param length - number of pixels
+	 */
+	public void compositeOnWhite(int [] argb, int offset, int length){
+		for(int i=offset,end=offset+length;i<end;i++){
+			int p = argb[i];
+			int t = 255 - (p >>> 24);
+			argb[i] = (p | 0xff000000) + t*0x010101;
+		}
+	}
+	
+	/**
+	 * average 2x2 blocks of pixels (all four channels), odd last row or 
+	 * column is dropped, destination can be the same array as source
+	 * @param src - source pixels
+	 * @param sw - source width
+	 * @param sh - source height
+	 * @param dst - destination pixels of (sw/2)x(sh/2) image
+	 */
+	public void halve(int [] src, int sw, int sh, int [] dst){
+		int dw = sw/2, dh = sh/2;
+		for(int y=0;y<dh;y++)
+			halveRow(src,2*y*sw,(2*y+1)*sw,dst,y*dw,0,dw);
+	}
+	
+	/**
+	 * average 2x2 blocks of pixels of two source rows
+	 * @param src
+	 * @param r0 - offset of first row
+	 * @param r1 - offset of second row
+	 * @param dst
+	 * @param o - offset of destination row
+	 * @param x0 - first destination column
+	 * @param x1 - end destination column
+	 */
+	protected static void halveRow(int [] src, int r0, int r1, int [] dst, int o, int x0, int x1){
+		for(int x=x0;x<x1;x++){
+			int i = 2*x;
+			int a = src[r0+i], b = src[r0+i+1], c = src[r1+i], d = src[r1+i+1];
+			int pa = ((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24) + 2) >> 2;
+			int pr = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2;
+			int pg = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2;
+			int pb = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+			dst[o+x] = (pa << 24) | (pr << 16) | (pg << 8) | pb;
+		}
+	}
+	
+	/**
+	 * convert RGB pixels to JPEG (JFIF) YCbCr planes, 
+	 * using the same fixed point arithmetic as libjpeg
+	 * @param rgb - source pixels
+	 * @param offset - first source pixel
+	 * @param length - number of pixels
+	 * @param y - luminance plane
+	 * @param cb - blue chroma plane
+	 * @param cr - red chroma plane
+	 * @param dstOffset - first destination sample
+	 */
+	public void toYCbCr(int [] rgb, int offset, int length, byte [] y, byte [] cb, byte [] cr, int dstOffset){
+		for(int i=0;i<length;i++){
+			int p = rgb[offset+i];
+			int r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+			y[dstOffset+i]  = (byte)((19595*r + 38470*g + 7471*b + 32768) >> 16);
+			cb[dstOffset+i] = (byte)((-11059*r - 21709*g + 32768*b + 8421375) >> 16);
+			cr[dstOffset+i] = (byte)((32768*r - 27439*g - 5329*b + 8421375) >> 16);
+		}
+	}
+}
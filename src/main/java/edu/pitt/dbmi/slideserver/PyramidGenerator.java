@@ -0,0 +1,375 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  pre-renders Deep Zoom tile pyramids of all slides in a directory into 
+ *  the persistent tile cache, so that the server never has to render them.
+ *  Slides and rows of tiles within a slide are rendered in parallel with fork/join.
+ *  Tiles that are already in the tile cache are skipped, so an interrupted
+ *  job can simply be started again. Tiles are stored under the same keys the 
+ *  Deep Zoom endpoint uses, so encoder options have to match server defaults
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class PyramidGenerator {
+	// image formats opened with ImageJ, everything else has to be recognized by OpenSlide
+	private static final Set<String> IMAGE_EXTENSIONS = new HashSet<String>(Arrays.asList(
+			"tif","tiff","jpg","jpeg","png","gif","bmp"));
+	//estimated size of an encoded tile, until actual sizes are known
+	private static final long ESTIMATED_TILE_SIZE = 16*1024;
+	private final File imageDirectory;
+	private final DiskTileCache store;
+	private final ImageEncoder.Options options;
+	private final ErrorLog log;
+	private final ForkJoinPool pool;
+	private final AtomicLong slides = new AtomicLong(), slidesDone = new AtomicLong(), slidesFailed = new AtomicLong();
+	private final AtomicLong tiles = new AtomicLong(), tilesSkipped = new AtomicLong(), tilesFailed = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile long startTime, endTime;
+	private volatile boolean running, cancelled;
+	private String path;
+	
+	/**
+	 * create pyramid generator
+	 * @param imageDirectory - image directory of the server
+	 * @param store - tile store of the server, it should never evict tiles
+	 * @param options - encoder options, should match server defaults
+	 * @param threads - number of threads, 0 for all cores
+	 * @param log - log of slides that failed, can be null
+	 */
+	public PyramidGenerator(File imageDirectory, DiskTileCache store, ImageEncoder.Options options, int threads, ErrorLog log){
+		this.imageDirectory = imageDirectory;
+		this.store = store;
+		this.options = options;
+		this.log = log;
+		this.pool = (threads > 0)?new ForkJoinPool(threads):new ForkJoinPool();
+	}
+	
+	/**
+	 * render pyramids of all slides in a directory (or of a single slide)
+	 * and wait for them to finish
+	 * @param path - directory or slide path relative to image directory
+	 */
+	public void generate(String path){
+		File file = new File(imageDirectory,path);
+		synchronized(this){
+			if(running)
+				throw new IllegalStateException("pyramid generation of "+this.path+" is already running");
+			this.path = path;
+			running = true;
+			cancelled = false;
+			startTime = System.currentTimeMillis();
+			endTime = 0;
+			for(AtomicLong counter: new AtomicLong [] {slides,slidesDone,slidesFailed,tiles,tilesSkipped,tilesFailed,bytes})
+				counter.set(0);
+		}
+		try{
+			if(file.isDirectory()){
+				pool.invoke(new DirectoryTask(file));
+			}else{
+				slides.incrementAndGet();
+				pool.invoke(new SlideTask(file));
+			}
+		}finally{
+			endTime = System.currentTimeMillis();
+			running = false;
+		}
+	}
+	
+	/**
+	 * is generation running
+	 * @return
+	 */
+	public boolean isRunning(){
+		return running;
+	}
+	
+	/**
+	 * stop generation, tiles that are done stay in tile cache
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+	
+	/**
+	 * stop generator threads
+	 */
+	public void dispose(){
+		cancel();
+		pool.shutdownNow();
+	}
+	
+	/**
+	 * check if file is a slide
+	 * @param file
+	 * @return
+	 */
+	private boolean isSlide(File file){
+		String name = file.getName().toLowerCase();
+		int i = name.lastIndexOf('.');
+		if(i > -1 && IMAGE_EXTENSIONS.contains(name.substring(i+1)))
+			return true;
+		return OpenSlideImage.isValid(file.getAbsolutePath());
+	}
+	
+	/**
+	 * open slide the same way server does
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private Slide openSlide(File file) throws IOException {
+		if(OpenSlideImage.isValid(file.getAbsolutePath()))
+			return new OpenSlideImage(file);
+		return new ImageJImage(file);
+	}
+	
+	/**
+	 * walk directory and render all slides in it
+	 */
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File dir;
+		public DirectoryTask(File dir){
+			this.dir = dir;
+		}
+		protected void compute() {
+			File [] files = dir.listFiles();
+			if(files == null || cancelled)
+				return;
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for(File f: files){
+				if(f.isHidden() || f.getName().startsWith("."))
+					continue;
+				if(f.isDirectory()){
+					tasks.add(new DirectoryTask(f));
+				}else if(isSlide(f)){
+					slides.incrementAndGet();
+					tasks.add(new SlideTask(f));
+				}
+			}
+			invokeAll(tasks);
+		}
+	}
+	
+	/**
+	 * render all tiles of a slide
+	 */
+	private class SlideTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File file;
+		public SlideTask(File file){
+			this.file = file;
+		}
+		protected void compute() {
+			if(cancelled)
+				return;
+			Slide slide = null;
+			try{
+				slide = openSlide(file);
+				DeepZoom dz = new DeepZoom(slide);
+				
+				// don't start pyramids that won't fit
+				long estimate = getEstimatedSize(dz);
+				long free = store.getDirectory().getUsableSpace();
+				if(estimate > free)
+					throw new IOException("pyramid needs about "+(estimate/(1024*1024))+" MB, only "+(free/(1024*1024))+" MB are free");
+				List<RowTask> rows = new ArrayList<RowTask>();
+				for(int level=dz.getLevelCount()-1;level>=0;level--){
+					for(int row=0;row<dz.getRowCount(level);row++)
+						rows.add(new RowTask(file,dz,level,row));
+				}
+				invokeAll(rows);
+				slidesDone.incrementAndGet();
+			}catch(Exception ex){
+				slidesFailed.incrementAndGet();
+				if(log != null)
+					log.log("unable to render pyramid of "+file,ex);
+			}finally{
+				if(slide != null)
+					slide.dispose();
+			}
+		}
+	}
+	
+	/**
+	 * estimate size of encoded pyramid from average size of tiles rendered so far
+	 * @param dz
+	 * @return size in bytes
+	 */
+	private long getEstimatedSize(DeepZoom dz){
+		long n = tiles.get();
+		long tileSize = (n > 0)?bytes.get()/n:ESTIMATED_TILE_SIZE;
+		long count = 0;
+		for(int level=0;level<dz.getLevelCount();level++)
+			count += (long) dz.getColumnCount(level)*dz.getRowCount(level);
+		return count*tileSize;
+	}
+	
+	/**
+	 * render a row of tiles
+	 */
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File file;
+		private final DeepZoom dz;
+		private final int level, row;
+		public RowTask(File file, DeepZoom dz, int level, int row){
+			this.file = file;
+			this.dz = dz;
+			this.level = level;
+			this.row = row;
+		}
+		protected void compute() {
+			for(int col=0;col<dz.getColumnCount(level) && !cancelled;col++){
+				String key = TileCache.getKey(file,"dzi",DeepZoom.TILE_SIZE,DeepZoom.OVERLAP,level,col,row,options);
+				if(store.contains(key)){
+					tilesSkipped.incrementAndGet();
+					continue;
+				}
+				try{
+					byte [] data = ImageEncoder.encode(dz.getTile(level,col,row),options);
+					store.put(key,data);
+					tiles.incrementAndGet();
+					bytes.addAndGet(data.length);
+				}catch(IOException ex){
+					tilesFailed.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * get progress and throughput of current or last run
+	 * @return
+	 */
+	public Properties getStatistics(){
+		long end = (endTime > 0)?endTime:System.currentTimeMillis();
+		double seconds = Math.max(1,end - startTime)/1000.0;
+		Properties p = new Properties();
+		p.setProperty("pyramid.path",""+path);
+		p.setProperty("pyramid.running",""+running);
+		p.setProperty("pyramid.slides",""+slides.get());
+		p.setProperty("pyramid.slides.done",""+slidesDone.get());
+		p.setProperty("pyramid.slides.failed",""+slidesFailed.get());
+		p.setProperty("pyramid.tiles",""+tiles.get());
+		p.setProperty("pyramid.tiles.skipped",""+tilesSkipped.get());
+		p.setProperty("pyramid.tiles.failed",""+tilesFailed.get());
+		p.setProperty("pyramid.bytes",""+bytes.get());
+		p.setProperty("pyramid.time",""+(long)(seconds*1000));
+		p.setProperty("pyramid.tiles.per.second",String.format("%.1f",tiles.get()/seconds));
+		p.setProperty("pyramid.mb.per.second",String.format("%.2f",bytes.get()/seconds/(1024*1024)));
+		return p;
+	}
+	
+	/**
+	 * print progress
+	 * @param p
+	 */
+	private static void printProgress(Properties p){
+		System.out.println(p.getProperty("pyramid.slides.done")+"/"+p.getProperty("pyramid.slides")+" slides, "+
+				p.getProperty("pyramid.tiles")+" tiles rendered, "+p.getProperty("pyramid.tiles.skipped")+" skipped, "+
+				p.getProperty("pyramid.tiles.per.second")+" tiles/sec, "+p.getProperty("pyramid.mb.per.second")+" MB/sec");
+	}
+	
+	/**
+	 * render pyramids from command line
+	 * @param args
+	 */
+	public static void main(String [] args) throws Exception {
+		if(args.length < 2){
+			System.out.println("Usage: java "+PyramidGenerator.class.getName()+" <image dir> <tile store dir> [path] "+
+					"[-threads n] [-quality 1-100] [-subsampling 444|422|420] [-progressive]");
+			return;
+		}
+		File imageDir = new File(args[0]);
+		File storeDir = new File(args[1]);
+		String path = "";
+		int threads = 0;
+		ImageEncoder.Options options = new ImageEncoder.Options();
+		for(int i=2;i<args.length;i++){
+			if("-threads".equals(args[i]))
+				threads = Integer.parseInt(args[++i]);
+			else if("-quality".equals(args[i]))
+				options.setQuality(Integer.parseInt(args[++i]));
+			else if("-subsampling".equals(args[i]))
+				options.setSubsampling(args[++i]);
+			else if("-progressive".equals(args[i]))
+				options.setProgressive(true);
+			else
+				path = args[i];
+		}
+		
+		// store directory can only be opened by one process, if the server
+		// is using it, pyramids have to be generated with action=pyramid
+		final DiskTileCache store;
+		try{
+			store = new DiskTileCache(storeDir,DiskTileCache.UNLIMITED);
+		}catch(IOException ex){
+			System.err.println("unable to open tile store: "+ex.getMessage());
+			System.err.println("if the server is running with this tile store, use its action=pyramid instead");
+			System.exit(1);
+			return;
+		}
+		final PyramidGenerator generator = new PyramidGenerator(imageDir,store,options,threads,new ErrorLog(){
+			public void log(String message, Throwable ex) {
+				System.err.println(message+((ex != null)?": "+ex.getMessage():""));
+			}
+		});
+		Thread progress = new Thread(new Runnable(){
+			public void run() {
+				try{
+					while(true){
+						Thread.sleep(10*1000);
+						printProgress(generator.getStatistics());
+					}
+				}catch(InterruptedException ex){
+					// done
+				}
+			}
+		});
+		progress.setDaemon(true);
+		progress.start();
+		try{
+			generator.generate(path);
+		}finally{
+			progress.interrupt();
+			generator.dispose();
+			store.dispose();
+		}
+		printProgress(generator.getStatistics());
+	}
+}
@@ -0,0 +1,127 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ *  pixel operations on packed int rasters, that are used instead of
+ *  Java2D compositing and scaling on the rendering path. Rasters are
+ *  arrays of 0xAARRGGBB or 0x00RRGGBB pixels stored row by row
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class RasterUtils {
+	//largest buffer (in pixels) that is kept around for reuse
+	private static final int MAX_REUSABLE_BUFFER = 4*1024*1024;
+	//max number of idle buffers kept for reuse
+	private static final int MAX_POOLED_BUFFERS = 8;
+	private static final LinkedList<int []> buffers = new LinkedList<int []>();
+	
+	/**
+	 * get temporary pixel buffer of at least a given size, it should be 
+	 * given back with releaseBuffer() once the caller is done with it
+	 * @param size
+	 * @return
+	 */
+	public static int [] getBuffer(int size){
+		if(size <= MAX_REUSABLE_BUFFER){
+			synchronized(buffers){
+				for(Iterator<int []> it = buffers.iterator();it.hasNext();){
+					int [] buffer = it.next();
+					if(buffer.length >= size){
+						it.remove();
+						return buffer;
+					}
+				}
+			}
+		}
+		return new int [size];
+	}
+	
+	/**
+	 * return temporary pixel buffer for reuse, large buffers and buffers 
+	 * that don't fit into the pool are dropped
+	 * @param buffer
+	 */
+	public static void releaseBuffer(int [] buffer){
+		if(buffer == null || buffer.length > MAX_REUSABLE_BUFFER)
+			return;
+		synchronized(buffers){
+			if(buffers.size() < MAX_POOLED_BUFFERS)
+				buffers.addFirst(buffer);
+		}
+	}
+	
+	/**
+	 * drop pooled buffers, called when the server shuts down
+	 */
+	public static void clearBuffers(){
+		synchronized(buffers){
+			buffers.clear();
+		}
+	}
+	
+	/**
+	 * create RGB image of a given size
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static BufferedImage createImage(int width, int height){
+		return new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+	}
+	
+	/**
+	 * get pixel array of RGB image created by createImage()
+	 * @param img
+	 * @return
+	 */
+	public static int [] getPixels(BufferedImage img){
+		return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+	}
+	
+	/**
+	 * composite premultiplied ARGB pixels onto white background in place
+	 * @param argb - premultiplied pixels
+	 * @param length - number of pixels
+	 */
+	public static void compositeOnWhite(int [] argb, int length){
+		PixelKernels.getInstance().compositeOnWhite(argb,0,length);
+	}
+	
+	/**
+	 * scale raster to a given size, see Resampler
+	 * @param src - source pixels
+	 * @param sw - source width
+	 * @param sh - source height
+	 * @param dst - destination pixels
+	 * @param dw - destination width
+	 * @param dh - destination height
+	 */
+	public static void scale(int [] src, int sw, int sh, int [] dst, int dw, int dh){
+		Resampler.resample(src,sw,sh,dst,dw,dh);
+	}
+}
@@ -0,0 +1,251 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  bounded executor for slide rendering.
+ *  Slow slide opens and large renders run on a fixed number of render threads
+ *  with a bounded queue, so they can't tie up every container thread. When the 
+ *  queue is full, or a render doesn't finish in time, the request fails fast 
+ *  with a BusyException that tells the client when to retry
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class RenderExecutor {
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+	public static final long DEFAULT_TIMEOUT = 60*1000;
+	private static final int MAX_RETRY_AFTER = 60;
+	
+	private final ThreadPoolExecutor executor;
+	private final int threads, queueSize;
+	private final long timeout;
+	private long completed, rejected, timeouts, renderTime;
+	
+	/**
+	 * thrown when there is no capacity to render a request
+	 */
+	public static class BusyException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int retryAfter;
+		public BusyException(String message, int retryAfter){
+			super(message);
+			this.retryAfter = retryAfter;
+		}
+		/**
+		 * get number of seconds after which client should retry
+		 * @return
+		 */
+		public int getRetryAfter(){
+			return retryAfter;
+		}
+	}
+	
+	/**
+	 * create render executor
+	 * @param threads - number of render threads
+	 * @param queueSize - max number of renders waiting for a thread
+	 * @param timeout - max time in milliseconds a request waits for its render
+	 */
+	public RenderExecutor(int threads, int queueSize, long timeout){
+		this.threads = (threads > 0)?threads:getDefaultThreads();
+		this.queueSize = (queueSize > 0)?queueSize:DEFAULT_QUEUE_SIZE;
+		this.timeout = (timeout > 0)?timeout:DEFAULT_TIMEOUT;
+		executor = new ThreadPoolExecutor(this.threads,this.threads,0,TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.queueSize),new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"RenderExecutor-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * default number of render threads
+	 * @return
+	 */
+	public static int getDefaultThreads(){
+		return 2*Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * run task on a render thread and wait for its result
+	 * @param task
+	 * @return
+	 * @throws IOException - BusyException if task was rejected or timed out
+	 */
+	public <T> T execute(Callable<T> task) throws IOException {
+		return getResult(submit(task,null));
+	}
+	
+	/**
+	 * queue task for a render thread without waiting for it
+	 * @param task
+	 * @param done - optional queue that the future is added to, when task is done
+	 * @return
+	 * @throws BusyException - if render queue is full
+	 */
+	public <T> Future<T> submit(Callable<T> task, BlockingQueue<Future<T>> done) throws BusyException {
+		RenderTask<T> future = new RenderTask<T>(task,done);
+		try{
+			executor.execute(future);
+		}catch(RejectedExecutionException ex){
+			synchronized(this){
+				rejected ++;
+			}
+			throw new BusyException("render queue is full",getRetryAfter());
+		}
+		return future;
+	}
+	
+	/**
+	 * wait for result of a submitted task
+	 * @param future
+	 * @return
+	 * @throws IOException - BusyException if task timed out
+	 */
+	public <T> T getResult(Future<T> future) throws IOException {
+		try{
+			return future.get(timeout,TimeUnit.MILLISECONDS);
+		}catch(TimeoutException ex){
+			// a render that already started will finish in the background
+			future.cancel(false);
+			synchronized(this){
+				timeouts ++;
+			}
+			throw new BusyException("render timed out",getRetryAfter());
+		}catch(CancellationException ex){
+			throw new BusyException("render was cancelled",getRetryAfter());
+		}catch(InterruptedException ex){
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while rendering");
+		}catch(ExecutionException ex){
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(""+cause);
+		}
+	}
+	
+	/**
+	 * max time in milliseconds a request waits for its render
+	 * @return
+	 */
+	public long getTimeout(){
+		return timeout;
+	}
+	
+	/**
+	 * render task that keeps track of render time and 
+	 * announces when it is done
+	 */
+	private class RenderTask<T> extends FutureTask<T> {
+		private final BlockingQueue<Future<T>> done;
+		public RenderTask(final Callable<T> task, BlockingQueue<Future<T>> done){
+			super(new Callable<T>(){
+				public T call() throws Exception {
+					long time = System.currentTimeMillis();
+					try{
+						return task.call();
+					}finally{
+						time = System.currentTimeMillis() - time;
+						synchronized(RenderExecutor.this){
+							completed ++;
+							renderTime += time;
+						}
+					}
+				}
+			});
+			this.done = done;
+		}
+		protected void done() {
+			if(done != null)
+				done.add(this);
+		}
+	}
+	
+	/**
+	 * estimate in how many seconds the queue is drained
+	 * @return
+	 */
+	private synchronized int getRetryAfter(){
+		long average = (completed > 0)?renderTime/completed:1000;
+		long wait = executor.getQueue().size()*average/threads/1000;
+		return (int) Math.max(1,Math.min(MAX_RETRY_AFTER,wait));
+	}
+	
+	/**
+	 * are all render threads idle
+	 * @return
+	 */
+	public boolean isIdle(){
+		return executor.getActiveCount() == 0 && executor.getQueue().isEmpty();
+	}
+	
+	/**
+	 * stop render threads
+	 */
+	public void dispose(){
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * get executor statistics
+	 * @return
+	 */
+	public synchronized Properties getStatistics(){
+		Properties p = new Properties();
+		p.setProperty("render.threads",""+threads);
+		p.setProperty("render.active",""+executor.getActiveCount());
+		p.setProperty("render.queued",""+executor.getQueue().size());
+		p.setProperty("render.queue.capacity",""+queueSize);
+		p.setProperty("render.timeout",""+timeout);
+		p.setProperty("render.completed",""+completed);
+		p.setProperty("render.rejected",""+rejected);
+		p.setProperty("render.timeouts",""+timeouts);
+		p.setProperty("render.time.average",""+((completed > 0)?renderTime/completed:0));
+		return p;
+	}
+}
@@ -0,0 +1,357 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ *  image resampling on packed int rasters. Downscaling halves the image 
+ *  with a 2x2 box filter for as long as it stays at least twice the target
+ *  size, which is cheap and averages every source pixel, then the remaining 
+ *  (less then 2x) step is done with a separable bilinear or Lanczos filter.
+ *  Quality is comparable to Image.SCALE_SMOOTH at a fraction of its cost.
+ *  This class only depends on AWT, so that it can be shared with the viewer
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class Resampler {
+	public static final int BILINEAR = 0;
+	public static final int LANCZOS  = 1;
+	// fixed point precision of filter weights
+	private static final int WEIGHT_BITS = 14;
+	private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+	private static int defaultFilter = BILINEAR;
+	
+	/**
+	 * filter weights of every output pixel in one dimension
+	 */
+	private static class Kernel {
+		int taps;
+		int [] index;
+		int [] weight;
+	}
+	
+	/**
+	 * set filter that is used for the final resampling step
+	 * @param filter - BILINEAR or LANCZOS
+	 */
+	public static void setDefaultFilter(int filter){
+		defaultFilter = (filter == LANCZOS)?LANCZOS:BILINEAR;
+	}
+	
+	/**
+	 * get filter by name
+	 * @param name - bilinear or lanczos
+	 * @return
+	 */
+	public static int getFilter(String name){
+		if("lanczos".equalsIgnoreCase(name))
+			return LANCZOS;
+		if("bilinear".equalsIgnoreCase(name))
+			return BILINEAR;
+		throw new IllegalArgumentException("unknown resampling filter "+name);
+	}
+	
+	/**
+	 * scale image, so that its greatest dimension is a given size,
+	 * the other dimension is determined by aspect ratio
+	 * @param src
+	 * @param size
+	 * @return same image if it is already of that size
+	 */
+	public static BufferedImage scaleToSize(BufferedImage src, int size){
+		if(src == null || size <= 0)
+			return src;
+		int w = src.getWidth();
+		int h = src.getHeight();
+		if(w > h){
+			h = Math.max(1,(size * h)/w);
+			w = size;
+		}else{
+			w = Math.max(1,(size * w)/h);
+			h = size;
+		}
+		return scale(src,w,h);
+	}
+	
+	/**
+	 * scale image to a given size with default filter
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @return same image if it is already of that size
+	 */
+	public static BufferedImage scale(BufferedImage src, int width, int height){
+		return scale(src,width,height,defaultFilter);
+	}
+	
+	/**
+	 * scale image to a given size, result is RGB image or
+	 * ARGB image, if source has alpha channel
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param filter - BILINEAR or LANCZOS
+	 * @return same image if it is already of that size
+	 */
+	public static BufferedImage scale(BufferedImage src, int width, int height, int filter){
+		if(src.getWidth() == width && src.getHeight() == height)
+			return src;
+		boolean alpha = src.getColorModel().hasAlpha();
+		BufferedImage dst = new BufferedImage(width,height,(alpha)?BufferedImage.TYPE_INT_ARGB:BufferedImage.TYPE_INT_RGB);
+		int [] pixels = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+		resample(getPixels(src),src.getWidth(),src.getHeight(),pixels,width,height,filter);
+		return dst;
+	}
+	
+	/**
+	 * get packed ARGB pixels of an image, pixels of int RGB images 
+	 * are used directly, other images are converted
+	 * @param img
+	 * @return
+	 */
+	private static int [] getPixels(BufferedImage img){
+		int w = img.getWidth(), h = img.getHeight();
+		int type = img.getType();
+		if((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) && img.getRaster().getParent() == null){
+			int [] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+			if(data.length == w*h)
+				return data;
+		}
+		// draw everything else, including sub-images, into packed raster
+		BufferedImage buffer = new BufferedImage(w,h,(img.getColorModel().hasAlpha())?BufferedImage.TYPE_INT_ARGB:BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = buffer.createGraphics();
+		g.drawImage(img,0,0,null);
+		g.dispose();
+		return ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+	}
+	
+	/**
+	 * resample raster to a given size with default filter
+	 * @param src - source pixels
+	 * @param sw - source width
+	 * @param sh - source height
+	 * @param dst - destination pixels
+	 * @param dw - destination width
+	 * @param dh - destination height
+	 */
+	public static void resample(int [] src, int sw, int sh, int [] dst, int dw, int dh){
+		resample(src,sw,sh,dst,dw,dh,defaultFilter);
+	}
+	
+	/**
+	 * resample raster to a given size, source raster is never modified
+	 * @param src - source pixels
+	 * @param sw - source width
+	 * @param sh - source height
+	 * @param dst - destination pixels
+	 * @param dw - destination width
+	 * @param dh - destination height
+	 * @param filter - BILINEAR or LANCZOS
+	 */
+	public static void resample(int [] src, int sw, int sh, int [] dst, int dw, int dh, int filter){
+		// halve for as long as image is at least twice the target size,
+		// the first step allocates a buffer, the rest work in place
+		int [] buffer = src;
+		while(sw >= 2*dw || sh >= 2*dh){
+			int fx = (sw >= 2*dw)?2:1;
+			int fy = (sh >= 2*dh)?2:1;
+			int [] in = buffer;
+			if(buffer == src)
+				buffer = new int [(sw/fx)*(sh/fy)];
+			if(fx == 2 && fy == 2)
+				PixelKernels.getInstance().halve(in,sw,sh,buffer);
+			else
+				halve(in,sw,sh,buffer,fx,fy);
+			sw /= fx;
+			sh /= fy;
+		}
+		if(sw == dw && sh == dh)
+			System.arraycopy(buffer,0,dst,0,dw*dh);
+		else
+			filter(buffer,sw,sh,dst,dw,dh,filter);
+	}
+	
+	/**
+	 * average 2x2, 2x1 or 1x2 blocks of pixels, odd last row or column 
+	 * is dropped, destination can be the same array as source
+	 * @param src
+	 * @param sw
+	 * @param sh
+	 * @param dst
+	 * @param fx - horizontal factor 1 or 2
+	 * @param fy - vertical factor 1 or 2
+	 */
+	private static void halve(int [] src, int sw, int sh, int [] dst, int fx, int fy){
+		int dw = sw/fx, dh = sh/fy;
+		for(int y=0,o=0;y<dh;y++){
+			// with factor of 1 the same row or column is just counted twice
+			int r0 = y*fy*sw;
+			int r1 = r0 + (fy-1)*sw;
+			for(int x=0;x<dw;x++,o++){
+				int i = x*fx, j = i + fx - 1;
+				int a = src[r0+i], b = src[r0+j], c = src[r1+i], d = src[r1+j];
+				int pa = ((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24) + 2) >> 2;
+				int pr = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2;
+				int pg = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2;
+				int pb = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+				dst[o] = (pa << 24) | (pr << 16) | (pg << 8) | pb;
+			}
+		}
+	}
+	
+	/**
+	 * separable resampling, horizontal pass followed by vertical pass
+	 * @param src
+	 * @param sw
+	 * @param sh
+	 * @param dst
+	 * @param dw
+	 * @param dh
+	 * @param filter
+	 */
+	private static void filter(int [] src, int sw, int sh, int [] dst, int dw, int dh, int filter){
+		Kernel kx = getKernel(sw,dw,filter);
+		Kernel ky = getKernel(sh,dh,filter);
+		
+		// horizontal pass
+		int [] tmp = new int [dw*sh];
+		for(int y=0;y<sh;y++){
+			int row = y*sw;
+			for(int x=0,k=0,o=y*dw;x<dw;x++,o++){
+				int a = 0, r = 0, g = 0, b = 0;
+				for(int t=0;t<kx.taps;t++,k++){
+					int p = src[row+kx.index[k]];
+					int w = kx.weight[k];
+					a += (p >>> 24)*w;
+					r += ((p >> 16) & 0xff)*w;
+					g += ((p >> 8) & 0xff)*w;
+					b += (p & 0xff)*w;
+				}
+				tmp[o] = pack(a,r,g,b);
+			}
+		}
+		
+		// vertical pass, source rows are added up whole to stay cache friendly
+		int [] acc = new int [dw*4];
+		for(int y=0;y<dh;y++){
+			Arrays.fill(acc,0);
+			for(int t=0,k=y*ky.taps;t<ky.taps;t++,k++){
+				int row = ky.index[k]*dw;
+				int w = ky.weight[k];
+				for(int x=0,j=0;x<dw;x++){
+					int p = tmp[row+x];
+					acc[j++] += (p >>> 24)*w;
+					acc[j++] += ((p >> 16) & 0xff)*w;
+					acc[j++] += ((p >> 8) & 0xff)*w;
+					acc[j++] += (p & 0xff)*w;
+				}
+			}
+			for(int x=0,j=0,o=y*dw;x<dw;x++,o++,j+=4)
+				dst[o] = pack(acc[j],acc[j+1],acc[j+2],acc[j+3]);
+		}
+	}
+	
+	/**
+	 * pack weighted channel sums into a pixel
+	 * @return
+	 */
+	private static int pack(int a, int r, int g, int b){
+		int half = WEIGHT_ONE >> 1;
+		return (clamp((a+half) >> WEIGHT_BITS) << 24) | (clamp((r+half) >> WEIGHT_BITS) << 16) | 
+			   (clamp((g+half) >> WEIGHT_BITS) << 8) | clamp((b+half) >> WEIGHT_BITS);
+	}
+	
+	/**
+	 * clamp channel value, Lanczos filter over- and undershoots
+	 * @param v
+	 * @return
+	 */
+	private static int clamp(int v){
+		return (v < 0)?0:((v > 255)?255:v);
+	}
+	
+	/**
+	 * get filter weights for resampling one dimension, when downscaling 
+	 * the filter is stretched to cover all source pixels
+	 * @param sn - source size
+	 * @param dn - destination size
+	 * @param filter
+	 * @return
+	 */
+	private static Kernel getKernel(int sn, int dn, int filter){
+		double scale = ((double) sn)/dn;
+		double stretch = Math.max(1,scale);
+		double support = ((filter == LANCZOS)?3:1)*stretch;
+		
+		Kernel k = new Kernel();
+		// max number of source pixels within support on either side of center
+		k.taps = (int) Math.ceil(2*support);
+		k.index = new int [dn*k.taps];
+		k.weight = new int [dn*k.taps];
+		double [] w = new double [k.taps];
+		for(int i=0;i<dn;i++){
+			double center = (i+0.5)*scale - 0.5;
+			int left = (int) Math.floor(center - support) + 1;
+			double sum = 0;
+			for(int t=0;t<k.taps;t++){
+				w[t] = kernel((left+t-center)/stretch,filter);
+				sum += w[t];
+			}
+			// normalize weights, so that they add up to one
+			int total = 0, max = 0;
+			for(int t=0;t<k.taps;t++){
+				int j = i*k.taps+t;
+				// pixels outside of raster are replaced by edge pixels
+				k.index[j] = Math.min(sn-1,Math.max(0,left+t));
+				k.weight[j] = (int) Math.round(w[t]*WEIGHT_ONE/sum);
+				total += k.weight[j];
+				if(k.weight[j] > k.weight[i*k.taps+max])
+					max = t;
+			}
+			k.weight[i*k.taps+max] += WEIGHT_ONE - total;
+		}
+		return k;
+	}
+	
+	/**
+	 * filter kernel
+	 * @param x - distance from center
+	 * @param filter
+	 * @return
+	 */
+	private static double kernel(double x, int filter){
+		x = Math.abs(x);
+		if(filter == LANCZOS){
+			if(x < 1e-8)
+				return 1;
+			if(x >= 3)
+				return 0;
+			double px = Math.PI*x;
+			return 3*Math.sin(px)*Math.sin(px/3)/(px*px);
+		}
+		return (x < 1)?1-x:0;
+	}
+}
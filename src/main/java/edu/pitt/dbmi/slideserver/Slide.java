@@ -1,6 +1,7 @@
 package edu.pitt.dbmi.slideserver;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.Properties;
 
 
@@ -56,6 +57,25 @@ public interface Slide {
 	 */
 	public boolean isOld();
 	
+	/**
+	 * get estimated memory footprint of this slide
+	 * in bytes, while it is open
+	 * @return
+	 */
+	public long getMemorySize();
+	
+	/**
+	 * release resources that were not used for a while,
+	 * slide remains open
+	 */
+	public void trim();
+	
+	/**
+	 * get runtime statistics of an open slide
+	 * @return
+	 */
+	public Properties getStatistics();
+	
 	/**
 	 * get slide metadata
 	 * @return
@@ -105,7 +125,48 @@ public interface Slide {
 	 * @param height
 	 * @param power
 	 * @return
+	 * @throws IOException if region could not be read
+	 */
+	
+	public BufferedImage getRegion(int x, int y, int width, int height, int size) throws IOException;
+	
+	
+	/**
+	 * get number of levels in native image pyramid
+	 * @return
+	 */
+	public int getLevelCount();
+	
+	/**
+	 * get width of a native pyramid level
+	 * @param level
+	 * @return
+	 */
+	public long getLevelWidth(int level);
+	
+	/**
+	 * get height of a native pyramid level
+	 * @param level
+	 * @return
+	 */
+	public long getLevelHeight(int level);
+	
+	/**
+	 * get downsample factor of a native pyramid level
+	 * @param level
+	 * @return
 	 */
+	public double getLevelDownsample(int level);
 	
-	public BufferedImage getRegion(int x, int y, int width, int height, int size);
+	/**
+	 * get image region from a native pyramid level without any rescaling
+	 * @param level
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param width  - width in level coordinates
+	 * @param height - height in level coordinates
+	 * @return
+	 * @throws IOException if region could not be read
+	 */
+	public BufferedImage getLevelRegion(int level, long x, long y, int width, int height) throws IOException;
 }
@@ -0,0 +1,452 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  bounded cache of open slide handles.
+ *  The capacity is measured in estimated bytes (see Slide.getMemorySize()),
+ *  least recently used slides are disposed when capacity is exceeded and
+ *  slides that were not accessed for a while are disposed by a background sweeper.
+ *  Slides are opened single-flight: concurrent requests for a slide that is
+ *  being opened wait for that open and share the resulting handle.
+ *  Slides are leased for the duration of a request, evicted slides that are
+ *  still leased are only disposed when the last lease is released
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class SlideCache {
+	public static final long DEFAULT_CAPACITY = 1024L*1024*1024;
+	public static final long DEFAULT_MAX_AGE = Slide.MAX_AGE;
+	private static final long SWEEP_INTERVAL = 60*1000;
+
+	private final Map<String,Entry> map;
+	private final Map<String,Pending> pending;
+	private final long capacity, maxAge;
+	private long weight;
+	private long hits, misses, waits, evictions, idleEvictions, evictedBytes;
+	private long opens, openFailures, openTime, maxOpenTime;
+	private long leases, deferredDisposals;
+	private ScheduledExecutorService sweeper;
+
+	/**
+	 * opens slides that are not in cache
+	 */
+	public static interface Loader {
+		/**
+		 * open slide for a given key
+		 * @param key
+		 * @return
+		 * @throws IOException
+		 */
+		public Slide load(String key) throws IOException;
+	}
+
+	/**
+	 * cache entry
+	 */
+	private static class Entry {
+		final Slide slide;
+		long size;
+		long lastAccess;
+		int references;
+		boolean evicted;
+
+		Entry(Slide slide){
+			this.slide = slide;
+			this.size = slide.getMemorySize();
+			this.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * slide that is being opened
+	 */
+	private static class Pending {
+		FutureTask<Entry> task;
+		int waiters;
+	}
+
+	/**
+	 * lease on a cached slide, slide is guaranteed not to be
+	 * disposed until the lease is released
+	 */
+	public class Lease {
+		private final Entry entry;
+		private boolean released;
+
+		private Lease(Entry entry){
+			this.entry = entry;
+		}
+
+		/**
+		 * get leased slide
+		 * @return
+		 */
+		public Slide getSlide(){
+			return entry.slide;
+		}
+
+		/**
+		 * release this lease, it is safe to call it more then once
+		 */
+		public void release(){
+			boolean dispose = false;
+			synchronized(SlideCache.this){
+				if(released)
+					return;
+				released = true;
+				leases --;
+				entry.lastAccess = System.currentTimeMillis();
+				if(--entry.references == 0 && entry.evicted){
+					deferredDisposals ++;
+					dispose = true;
+				}
+			}
+			if(dispose)
+				dispose(Collections.singletonList(entry.slide));
+		}
+	}
+
+	/**
+	 * create new slide cache
+	 * @param capacity - max estimated size of all open slides in bytes
+	 * @param maxAge - max time in milliseconds an unused slide is kept open
+	 */
+	public SlideCache(long capacity, long maxAge){
+		this.capacity = (capacity > 0)?capacity:DEFAULT_CAPACITY;
+		this.maxAge = (maxAge > 0)?maxAge:DEFAULT_MAX_AGE;
+
+		// access ordered map gives us LRU iteration order
+		map = new LinkedHashMap<String,Entry>(16,0.75f,true);
+		pending = new HashMap<String,Pending>();
+
+		// initialize idle slide sweeper
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"SlideCache-sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = Math.min(SWEEP_INTERVAL,this.maxAge);
+		sweeper.scheduleWithFixedDelay(new Runnable(){
+			public void run() {
+				try{
+					evictIdle();
+				}catch(Throwable ex){
+					ex.printStackTrace();
+				}
+			}
+		},interval,interval,TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * lease slide from cache, open it with a given loader if it is not
+	 * there yet. Only one thread opens a given slide, other threads that ask
+	 * for the same slide in the meantime wait for it and share the result.
+	 * The lease has to be released when the caller is done with the slide
+	 * @param key
+	 * @param loader
+	 * @return
+	 * @throws IOException
+	 */
+	public Lease acquire(final String key, final Loader loader) throws IOException {
+		final Pending p;
+		boolean owner = false;
+		synchronized(this){
+			Entry e = map.get(key);
+			if(e != null){
+				hits ++;
+				return lease(e);
+			}
+			if(pending.containsKey(key)){
+				p = pending.get(key);
+				p.waiters ++;
+				waits ++;
+			}else{
+				misses ++;
+				p = new Pending();
+				p.task = new FutureTask<Entry>(new Callable<Entry>(){
+					public Entry call() throws Exception {
+						return load(key,loader,p);
+					}
+				});
+				pending.put(key,p);
+				owner = true;
+			}
+		}
+
+		// open slide in this thread
+		if(owner)
+			p.task.run();
+
+		// entry already has a reference for every thread that waited on it
+		Entry e = getResult(p.task);
+		synchronized(this){
+			leases ++;
+		}
+		return new Lease(e);
+	}
+
+	/**
+	 * lease slide only if it is already open
+	 * @param key
+	 * @return lease or null if slide is not in cache
+	 */
+	public synchronized Lease get(String key){
+		Entry e = map.get(key);
+		if(e == null)
+			return null;
+		hits ++;
+		return lease(e);
+	}
+
+	/**
+	 * open slide and put it into cache
+	 * @param key
+	 * @param loader
+	 * @param p
+	 * @return
+	 * @throws IOException
+	 */
+	private Entry load(String key, Loader loader, Pending p) throws IOException {
+		long time = System.currentTimeMillis();
+		Slide slide = null;
+		try{
+			slide = loader.load(key);
+		}finally{
+			time = System.currentTimeMillis() - time;
+			if(slide == null){
+				synchronized(this){
+					pending.remove(key);
+					openFailures ++;
+				}
+			}
+		}
+		List<Slide> evicted = new ArrayList<Slide>();
+		Entry e = new Entry(slide);
+		synchronized(this){
+			pending.remove(key);
+			opens ++;
+			openTime += time;
+			maxOpenTime = Math.max(maxOpenTime,time);
+			e.references = 1 + p.waiters;
+			put(key,e,evicted);
+		}
+		dispose(evicted);
+		return e;
+	}
+
+	/**
+	 * lease an entry that is in cache
+	 * @param e
+	 * @return
+	 */
+	private Lease lease(Entry e){
+		e.lastAccess = System.currentTimeMillis();
+		e.references ++;
+		leases ++;
+		return new Lease(e);
+	}
+
+	/**
+	 * wait for the slide that is being opened
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	private Entry getResult(FutureTask<Entry> task) throws IOException {
+		try{
+			return task.get();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while opening slide");
+		}catch(ExecutionException ex){
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(""+cause);
+		}
+	}
+
+	/**
+	 * put slide into cache, least recently used slides are
+	 * removed if capacity is exceeded, slides that are not leased
+	 * have to be disposed by the caller outside of the cache lock
+	 * @param key
+	 * @param e
+	 * @param evicted - list of slides that can be disposed
+	 */
+	private void put(String key, Entry e, List<Slide> evicted){
+		Entry old = map.put(key,e);
+		if(old != null)
+			remove(old,evicted);
+		weight += e.size;
+
+		// evict LRU slides, but never the one we just put in
+		for(Iterator<Entry> it = map.values().iterator();weight > capacity && it.hasNext();){
+			Entry lru = it.next();
+			if(lru == e)
+				continue;
+			it.remove();
+			remove(lru,evicted);
+			evictions ++;
+			evictedBytes += lru.size;
+		}
+	}
+
+	/**
+	 * mark entry that was taken out of the map as evicted
+	 * @param e
+	 * @param evicted - list of slides that can be disposed
+	 */
+	private void remove(Entry e, List<Slide> evicted){
+		weight -= e.size;
+		e.evicted = true;
+		// leased slides are disposed when the last lease is released
+		if(e.references == 0)
+			evicted.add(e.slide);
+	}
+
+	/**
+	 * dispose of slides that were not accessed for a while and
+	 * let the remaining slides release resources they don't use
+	 */
+	public void evictIdle(){
+		List<Slide> evicted = new ArrayList<Slide>();
+		List<Entry> open = new ArrayList<Entry>();
+		long now = System.currentTimeMillis();
+		synchronized(this){
+			for(Iterator<Entry> it = map.values().iterator();it.hasNext();){
+				Entry e = it.next();
+				if(e.references == 0 && now - e.lastAccess > maxAge){
+					it.remove();
+					remove(e,evicted);
+					idleEvictions ++;
+					evictedBytes += e.size;
+				}else{
+					open.add(e);
+				}
+			}
+		}
+		dispose(evicted);
+		
+		// slide footprint changes as it opens and trims native handles
+		for(Entry e: open)
+			e.slide.trim();
+		synchronized(this){
+			for(Entry e: open){
+				if(!e.evicted){
+					long size = e.slide.getMemorySize();
+					weight += size - e.size;
+					e.size = size;
+				}
+			}
+		}
+	}
+
+	/**
+	 * dispose of all slides that are not leased and stop the sweeper
+	 */
+	public void dispose(){
+		sweeper.shutdownNow();
+		List<Slide> evicted = new ArrayList<Slide>();
+		synchronized(this){
+			for(Entry e: map.values())
+				remove(e,evicted);
+			map.clear();
+		}
+		dispose(evicted);
+	}
+
+	/**
+	 * dispose of evicted slides outside of cache lock
+	 * @param slides
+	 */
+	private void dispose(List<Slide> slides){
+		for(Slide slide: slides){
+			try{
+				slide.dispose();
+			}catch(Exception ex){
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * get cache statistics
+	 * @return
+	 */
+	public synchronized Properties getStatistics(){
+		Properties p = new Properties();
+		p.setProperty("slide.cache.count",""+map.size());
+		p.setProperty("slide.cache.size",""+weight);
+		p.setProperty("slide.cache.capacity",""+capacity);
+		p.setProperty("slide.cache.max.age",""+maxAge);
+		p.setProperty("slide.cache.hits",""+hits);
+		p.setProperty("slide.cache.misses",""+misses);
+		p.setProperty("slide.cache.waits",""+waits);
+		p.setProperty("slide.cache.opens",""+opens);
+		p.setProperty("slide.cache.opens.failed",""+openFailures);
+		p.setProperty("slide.cache.open.time.total",""+openTime);
+		p.setProperty("slide.cache.open.time.average",""+((opens > 0)?openTime/opens:0));
+		p.setProperty("slide.cache.open.time.max",""+maxOpenTime);
+		p.setProperty("slide.cache.leases",""+leases);
+		p.setProperty("slide.cache.evictions",""+evictions);
+		p.setProperty("slide.cache.evictions.idle",""+idleEvictions);
+		p.setProperty("slide.cache.evictions.deferred",""+deferredDisposals);
+		p.setProperty("slide.cache.evicted.bytes",""+evictedBytes);
+		
+		// per slide requests in flight
+		for(Map.Entry<String,Entry> e: map.entrySet()){
+			String prefix = "slide.cache.slide."+e.getKey()+".";
+			p.setProperty(prefix+"leases",""+e.getValue().references);
+			p.setProperty(prefix+"size",""+e.getValue().size);
+			Properties stats = e.getValue().slide.getStatistics();
+			for(String name: stats.stringPropertyNames())
+				p.setProperty(prefix+name,stats.getProperty(name));
+		}
+		return p;
+	}
+}
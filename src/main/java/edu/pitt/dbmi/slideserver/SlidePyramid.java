@@ -0,0 +1,146 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ *  helper methods to read slide regions from the native image pyramid.
+ *  A region is read from the native level closest to (but not below) the
+ *  requested downsample, so that most requests are a straight level read
+ *  and only the residual scale is done in Java
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class SlidePyramid {
+	//native downsamples are often not exact powers of two (ex: 4.0003)
+	private static final double TOLERANCE = 0.01;
+	//max number of native pixels that are read at once, larger scaled reads are done in parts
+	public static final long MAX_READ_PIXELS = 4096L*4096;
+	
+	/**
+	 * get native level that has the largest downsample that is 
+	 * not greater then a given downsample
+	 * @param slide
+	 * @param downsample
+	 * @return
+	 */
+	public static int getBestLevel(Slide slide, double downsample){
+		int best = 0;
+		for(int i=1;i<slide.getLevelCount();i++){
+			double ds = slide.getLevelDownsample(i);
+			if(ds <= downsample*(1+TOLERANCE) && ds > slide.getLevelDownsample(best))
+				best = i;
+		}
+		return best;
+	}
+	
+	/**
+	 * is a given downsample served by a native level without rescaling
+	 * @param slide
+	 * @param downsample
+	 * @return
+	 */
+	public static boolean isNative(Slide slide, double downsample){
+		double ds = slide.getLevelDownsample(getBestLevel(slide,downsample));
+		return Math.abs(ds-downsample) <= downsample*TOLERANCE;
+	}
+	
+	/**
+	 * get number of native pixels that are read to render a slide region,
+	 * it can be much larger then output image on slides with few levels
+	 * @param slide
+	 * @param downsample - downsample factor of output image
+	 * @param width  - width of output image
+	 * @param height - height of output image
+	 * @return
+	 */
+	public static long getReadSize(Slide slide, double downsample, int width, int height){
+		double scale = downsample/slide.getLevelDownsample(getBestLevel(slide,downsample));
+		return Math.max(1,Math.round(width*scale))*Math.max(1,Math.round(height*scale));
+	}
+	
+	/**
+	 * read slide region, when the native read is large, it is done in parts
+	 * that are scaled one at a time, so memory doesn't depend on the residual scale
+	 * @param slide
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param downsample - downsample factor of output image
+	 * @param width  - width of output image
+	 * @param height - height of output image
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedImage readRegion(Slide slide, long x, long y, double downsample, int width, int height) throws IOException {
+		int level = getBestLevel(slide,downsample);
+		double scale = downsample/slide.getLevelDownsample(level);
+		int w = Math.max(1,(int)Math.round(width*scale));
+		int h = Math.max(1,(int)Math.round(height*scale));
+		
+		// straight read from native level
+		if(isNative(slide,downsample) || (w == width && h == height))
+			return slide.getLevelRegion(level,x,y,width,height);
+		
+		// read from native level and scale the rest of the way
+		if((long)w*h <= MAX_READ_PIXELS)
+			return scaleImage(slide.getLevelRegion(level,x,y,w,h),width,height);
+		
+		// output size of a part, whose native read is within limit
+		int part = (int)(Math.sqrt(MAX_READ_PIXELS)/scale);
+		if(part < 1)
+			throw new IOException("downsample "+downsample+" is too far from native levels to read");
+		double lds = slide.getLevelDownsample(level);
+		BufferedImage img = RasterUtils.createImage(width,height);
+		Graphics2D g = img.createGraphics();
+		try{
+			for(int py=0;py<height;py+=part){
+				int ph = Math.min(part,height-py);
+				long ny = Math.round(py*scale);
+				int nh = (int) Math.max(1,Math.round((py+ph)*scale)-ny);
+				for(int px=0;px<width;px+=part){
+					int pw = Math.min(part,width-px);
+					long nx = Math.round(px*scale);
+					int nw = (int) Math.max(1,Math.round((px+pw)*scale)-nx);
+					BufferedImage src = slide.getLevelRegion(level,x+(long)(nx*lds),y+(long)(ny*lds),nw,nh);
+					g.drawImage(scaleImage(src,pw,ph),px,py,null);
+				}
+			}
+		}finally{
+			g.dispose();
+		}
+		return img;
+	}
+	
+	/**
+	 * scale image to a given size
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static BufferedImage scaleImage(BufferedImage src, int width, int height){
+		return Resampler.scale(src,width,height);
+	}
+}
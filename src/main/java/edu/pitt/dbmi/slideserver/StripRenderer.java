@@ -0,0 +1,102 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ *  renders slide region in horizontal strips for ImageEncoder, so that
+ *  large regions can be encoded without holding the whole image in memory.
+ *  Every strip is read from the native pyramid the same way as a 
+ *  region of its own, see SlidePyramid
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class StripRenderer implements ImageEncoder.StripSource {
+	//max number of output pixels in a strip
+	public static final int DEFAULT_STRIP_PIXELS = 2*1024*1024;
+	//strips are a multiple of JPEG MCU height
+	private static final int STRIP_ALIGNMENT = 16;
+	private final Slide slide;
+	private final int x, y, width, height, stripHeight;
+	private final double downsample;
+	
+	/**
+	 * create renderer for a region that is scaled the same way as Slide.getRegion()
+	 * @param slide
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param width - region width in absolute coordinates
+	 * @param height - region height in absolute coordinates
+	 * @param size - size of the longer side of output image
+	 */
+	public StripRenderer(Slide slide, int x, int y, int width, int height, int size){
+		Dimension d = getImageSize(width,height,size);
+		this.slide = slide;
+		this.x = x;
+		this.y = y;
+		this.width = d.width;
+		this.height = d.height;
+		this.downsample = ((double) width)/d.width;
+		int rows = Math.max(1,DEFAULT_STRIP_PIXELS/d.width);
+		this.stripHeight = Math.max(STRIP_ALIGNMENT,(rows/STRIP_ALIGNMENT)*STRIP_ALIGNMENT);
+	}
+	
+	/**
+	 * get size of output image of a region request, the longer side 
+	 * of the region is scaled to a given size
+	 * @param width - region width
+	 * @param height - region height
+	 * @param size - size of the longer side of output image
+	 * @return
+	 */
+	public static Dimension getImageSize(int width, int height, int size){
+		if(height > width)
+			return new Dimension(Math.max(1,(int)(((long)width * size)/ height)),size);
+		return new Dimension(size,Math.max(1,(int)(((long)height * size)/ width)));
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getStripHeight() {
+		return stripHeight;
+	}
+	
+	public void render(int row, int rows, int [] rgb) throws IOException {
+		long sy = y + Math.round(row*downsample);
+		BufferedImage img = SlidePyramid.readRegion(slide,x,sy,downsample,width,rows);
+		if(img == null)
+			throw new IOException("unable to read region of slide "+slide.getName());
+		if(img.getType() == BufferedImage.TYPE_INT_RGB && img.getRaster().getParent() == null)
+			System.arraycopy(RasterUtils.getPixels(img),0,rgb,0,width*rows);
+		else
+			img.getRGB(0,0,width,rows,rgb,0,width);
+	}
+}
@@ -0,0 +1,384 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ *  encoded slide thumbnails at a few standard sizes. Thumbnails are kept in 
+ *  persistent tier of tile cache (tile store or disk cache) under the same keys 
+ *  action=image responses use, so standard size requests are plain cache hits, 
+ *  thumbnails only get into memory once they are requested. Other sizes are 
+ *  scaled down from the nearest larger stored thumbnail instead of reading 
+ *  the slide. A background scanner walks image directory periodically and 
+ *  generates missing thumbnails with a bounded number of threads, so new 
+ *  slides are picked up incrementally
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class ThumbnailStore {
+	public static final int [] DEFAULT_SIZES = new int [] {128,256,512,1024};
+	public static final int DEFAULT_THREADS = 2;
+	public static final long DEFAULT_SCAN_INTERVAL = 10*60*1000;
+	
+	private final TileCache cache;
+	private final int [] sizes;
+	private final ImageEncoder.Options options;
+	private final ErrorLog log;
+	private Thread scanner;
+	private ThreadPoolExecutor workers;
+	private volatile boolean scanning;
+	private volatile long lastScan, scanTime;
+	private final Map<File,String> failed = new HashMap<File,String>();
+	private long hits, misses, generated, errors;
+	
+	/**
+	 * renders thumbnails of slides
+	 */
+	public static interface Renderer {
+		/**
+		 * get slide thumbnail
+		 * @param path - slide path relative to image directory
+		 * @param size - greatest dimension
+		 * @return
+		 * @throws IOException
+		 */
+		public BufferedImage render(String path, int size) throws IOException;
+	}
+	
+	/**
+	 * create thumbnail store
+	 * @param cache - tile cache thumbnails are kept in
+	 * @param sizes - standard thumbnail sizes
+	 * @param options - encoder options thumbnails are stored with
+	 * @param log - log of scanner errors, can be null
+	 */
+	public ThumbnailStore(TileCache cache, int [] sizes, ImageEncoder.Options options, ErrorLog log){
+		this.cache = cache;
+		this.log = log;
+		this.sizes = (sizes != null && sizes.length > 0)?sizes.clone():DEFAULT_SIZES.clone();
+		this.options = new ImageEncoder.Options(options);
+		Arrays.sort(this.sizes);
+	}
+	
+	/**
+	 * parse comma separated list of sizes
+	 * @param value
+	 * @return default sizes if value is empty
+	 */
+	public static int [] parseSizes(String value){
+		if(value == null || value.trim().length() == 0)
+			return DEFAULT_SIZES.clone();
+		String [] p = value.trim().split("\\s*,\\s*");
+		int [] sizes = new int [p.length];
+		for(int i=0;i<p.length;i++)
+			sizes[i] = Integer.parseInt(p[i]);
+		return sizes;
+	}
+	
+	/**
+	 * get key of a thumbnail, same as action=image response key
+	 * @param file - slide file
+	 * @param size - greatest dimension
+	 * @param options - encoder options
+	 * @return
+	 */
+	public static String getKey(File file, int size, ImageEncoder.Options options){
+		return TileCache.getKey(file,"image",size,options);
+	}
+	
+	/**
+	 * get thumbnail from the nearest stored size that is not smaller 
+	 * then requested size
+	 * @param file - slide file
+	 * @param size - greatest dimension
+	 * @param options - encoder options of response
+	 * @return null if there is no such thumbnail stored
+	 * @throws IOException
+	 */
+	public byte [] get(File file, int size, ImageEncoder.Options options) throws IOException {
+		for(int s: sizes){
+			if(s < size)
+				continue;
+			byte [] data = cache.get(getKey(file,s,this.options));
+			if(data == null)
+				continue;
+			if(s == size && this.options.toString().equals(options.toString())){
+				count(true);
+				return data;
+			}
+			BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+			if(img == null)
+				continue;
+			count(true);
+			return ImageEncoder.encode(scale(img,size),options);
+		}
+		count(false);
+		return null;
+	}
+	
+	/**
+	 * count store access
+	 * @param hit
+	 */
+	private synchronized void count(boolean hit){
+		if(hit)
+			hits ++;
+		else
+			misses ++;
+	}
+	
+	/**
+	 * are all standard sizes of slide thumbnail stored
+	 * @param file
+	 * @return
+	 */
+	public boolean contains(File file){
+		for(int s: sizes){
+			if(!cache.isStored(getKey(file,s,options)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * render the largest thumbnail of a slide and scale it 
+	 * down to the rest of standard sizes, thumbnails are stored
+	 * without flushing tiles that are in use from memory
+	 * @param file - slide file
+	 * @param path - slide path relative to image directory
+	 * @param renderer
+	 * @throws IOException - if thumbnails can't be rendered or stored
+	 */
+	public void generate(File file, String path, Renderer renderer) throws IOException {
+		BufferedImage img = renderer.render(path,sizes[sizes.length-1]);
+		if(img == null)
+			throw new IOException("unable to render thumbnail of "+path);
+		for(int i=sizes.length-1;i>=0;i--){
+			// each size is scaled from the previous one
+			img = scale(img,sizes[i]);
+			if(!cache.putStored(getKey(file,sizes[i],options),ImageEncoder.encode(img,options)))
+				throw new IOException("tile cache has no tile store or disk cache");
+		}
+		synchronized(this){
+			generated ++;
+		}
+	}
+	
+	/**
+	 * scale image, so that its greatest dimension is a given size
+	 * @param img
+	 * @param size
+	 * @return
+	 */
+	private BufferedImage scale(BufferedImage img, int size){
+		int w = img.getWidth();
+		int h = img.getHeight();
+		if(Math.max(w,h) <= size)
+			return img;
+		if(w > h){
+			h = Math.max(1,(size*h)/w);
+			w = size;
+		}else{
+			w = Math.max(1,(size*w)/h);
+			h = size;
+		}
+		return Resampler.scale(img,w,h);
+	}
+	
+	/**
+	 * start generating missing thumbnails in background, scanner runs at low 
+	 * priority and waits while render threads are busy. Without a persistent 
+	 * tier thumbnails would be evicted and regenerated every scan, so the 
+	 * scanner doesn't start
+	 * @param root - image directory
+	 * @param index - directory index, can be null
+	 * @param renderer - renders thumbnails
+	 * @param executor - executor that should not be competed with, can be null
+	 * @param threads - max number of slides that are read at the same time
+	 * @param interval - time between scans in milliseconds
+	 * @return false if tile cache has no persistent tier
+	 */
+	public synchronized boolean scan(final File root, final DirectoryIndex index, final Renderer renderer, 
+									final RenderExecutor executor, int threads, final long interval){
+		if(!cache.isPersistent())
+			return false;
+		if(scanner != null)
+			return true;
+		final int n = (threads > 0)?threads:DEFAULT_THREADS;
+		workers = new ThreadPoolExecutor(n,n,60,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"ThumbnailStore-worker");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		scanner = new Thread(new Runnable(){
+			public void run() {
+				Semaphore permits = new Semaphore(n);
+				try{
+					while(!Thread.currentThread().isInterrupted()){
+						DirectoryIndex.Entry dir = null;
+						if(index != null){
+							while(!index.isReady())
+								Thread.sleep(1000);
+							dir = index.get("");
+						}
+						if(dir == null)
+							dir = DirectoryIndex.load(root,"");
+						long time = System.currentTimeMillis();
+						scanning = true;
+						if(dir != null)
+							scan(dir,renderer,executor,permits);
+						// wait for the last slides to finish
+						permits.acquire(n);
+						permits.release(n);
+						scanning = false;
+						lastScan = System.currentTimeMillis();
+						scanTime = lastScan - time;
+						Thread.sleep((interval > 0)?interval:DEFAULT_SCAN_INTERVAL);
+					}
+				}catch(InterruptedException ex){
+					//NOOP: store is disposed
+				}finally{
+					scanning = false;
+				}
+			}
+		},"ThumbnailStore-scanner");
+		scanner.setDaemon(true);
+		scanner.setPriority(Thread.MIN_PRIORITY);
+		scanner.start();
+		return true;
+	}
+	
+	/**
+	 * generate missing thumbnails of all slides in directory tree
+	 * @param dir
+	 * @param renderer
+	 * @param executor
+	 * @param permits - limits number of slides that are read at the same time
+	 * @throws InterruptedException
+	 */
+	private void scan(DirectoryIndex.Entry dir, final Renderer renderer, RenderExecutor executor, final Semaphore permits) throws InterruptedException {
+		for(final DirectoryIndex.Entry e: dir.getChildren().values()){
+			if(Thread.currentThread().isInterrupted())
+				throw new InterruptedException();
+			if(e.isHidden())
+				continue;
+			if(e.isDirectory()){
+				scan(e,renderer,executor,permits);
+				continue;
+			}
+			// files that failed or are not slides are skipped until they change
+			final File file = e.getFile();
+			final String stamp = e.getLastModified()+"|"+e.getLength();
+			synchronized(this){
+				if(stamp.equals(failed.get(file)))
+					continue;
+			}
+			if(contains(file))
+				continue;
+			if(!OpenSlideImage.isValid(file.getAbsolutePath())){
+				synchronized(this){
+					failed.put(file,stamp);
+				}
+				continue;
+			}
+			permits.acquire();
+			// don't compete with requests
+			while(executor != null && !executor.isIdle())
+				Thread.sleep(100);
+			try{
+				workers.execute(new Runnable(){
+					public void run() {
+						try{
+							generate(file,e.getPath().replace('/',File.separatorChar),renderer);
+							synchronized(ThumbnailStore.this){
+								failed.remove(file);
+							}
+						}catch(Exception ex){
+							if(log != null)
+								log.log("unable to generate thumbnails of "+file,ex);
+							synchronized(ThumbnailStore.this){
+								errors ++;
+								failed.put(file,stamp);
+							}
+						}finally{
+							permits.release();
+						}
+					}
+				});
+			}catch(RuntimeException ex){
+				permits.release();
+				throw ex;
+			}
+		}
+	}
+	
+	/**
+	 * stop background scanner
+	 */
+	public synchronized void dispose(){
+		if(scanner != null)
+			scanner.interrupt();
+		if(workers != null)
+			workers.shutdownNow();
+	}
+	
+	/**
+	 * get store statistics
+	 * @return
+	 */
+	public synchronized Properties getStatistics(){
+		Properties p = new Properties();
+		StringBuffer b = new StringBuffer();
+		for(int s: sizes)
+			b.append(((b.length() > 0)?",":"")+s);
+		p.setProperty("thumbnail.store.sizes",b.toString());
+		p.setProperty("thumbnail.store.hits",""+hits);
+		p.setProperty("thumbnail.store.misses",""+misses);
+		p.setProperty("thumbnail.store.generated",""+generated);
+		p.setProperty("thumbnail.store.errors",""+errors);
+		p.setProperty("thumbnail.store.skipped",""+failed.size());
+		p.setProperty("thumbnail.store.scan.running",""+scanning);
+		p.setProperty("thumbnail.store.scan.last",""+lastScan);
+		p.setProperty("thumbnail.store.scan.time",""+scanTime);
+		if(workers != null)
+			p.setProperty("thumbnail.store.scan.active",""+workers.getActiveCount());
+		return p;
+	}
+}
@@ -0,0 +1,560 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ *  exports slide region as tiled BigTIFF file, optionally with reduced
+ *  resolution levels (one directory per level, each level half the size of 
+ *  the previous one). Tiles are read from the slide and compressed (JPEG or
+ *  deflate) on a thread pool, a few at a time, and written out in order,
+ *  so memory used doesn't depend on the size of the region. Directories are
+ *  written after all tiles, since tile sizes are not known up front, and 
+ *  header is updated at the end, so output has to be a file
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class TiffExporter {
+	public static final String JPEG = "jpeg";
+	public static final String DEFLATE = "deflate";
+	public static final int TILE_SIZE = 256;
+	// tiles that are being read or compressed per thread
+	private static final int TILES_PER_THREAD = 4;
+	private static final int BACKGROUND = 0xffffff;
+	
+	// TIFF tags and field types
+	private static final int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259, PHOTOMETRIC = 262, IMAGE_DESCRIPTION = 270, SAMPLES_PER_PIXEL = 277;
+	private static final int X_RESOLUTION = 282, Y_RESOLUTION = 283, PLANAR_CONFIGURATION = 284, RESOLUTION_UNIT = 296;
+	private static final int SOFTWARE = 305, PREDICTOR = 317, TILE_WIDTH = 322, TILE_LENGTH = 323;
+	private static final int TILE_OFFSETS = 324, TILE_BYTE_COUNTS = 325, YCBCR_SUBSAMPLING = 530;
+	private static final int ASCII = 2, SHORT = 3, LONG = 4, RATIONAL = 5, LONG8 = 16;
+	
+	private final Slide slide;
+	private final long x, y;
+	private final int level, width, height;
+	private final double downsample;
+	private String compression = JPEG;
+	private ImageEncoder.Options options = new ImageEncoder.Options();
+	private boolean pyramid;
+	private String description;
+	
+	/**
+	 * level of the exported image
+	 */
+	private class Level {
+		final int index, width, height, columns, rows;
+		final double downsample;
+		final long [] offsets, counts;
+		
+		Level(int index){
+			this.index = index;
+			this.width  = Math.max(1,(int)((TiffExporter.this.width + (1L << index) - 1) >> index));
+			this.height = Math.max(1,(int)((TiffExporter.this.height + (1L << index) - 1) >> index));
+			this.downsample = TiffExporter.this.downsample*(1L << index);
+			columns = (width + TILE_SIZE - 1)/TILE_SIZE;
+			rows = (height + TILE_SIZE - 1)/TILE_SIZE;
+			offsets = new long [columns*rows];
+			counts = new long [columns*rows];
+		}
+	}
+	
+	/**
+	 * create exporter of a slide region
+	 * @param slide
+	 * @param x - offset in absolute (level 0) coordinates
+	 * @param y - offset in absolute (level 0) coordinates
+	 * @param width - region width in absolute coordinates
+	 * @param height - region height in absolute coordinates
+	 * @param level - native level that is exported at full resolution
+	 * @throws IllegalArgumentException if level or region is not valid
+	 */
+	public TiffExporter(Slide slide, long x, long y, long width, long height, int level){
+		if(level < 0 || level >= slide.getLevelCount())
+			throw new IllegalArgumentException("invalid level "+level);
+		long sw = slide.getLevelWidth(0), sh = slide.getLevelHeight(0);
+		if(x < 0 || y < 0 || width <= 0 || height <= 0 || x >= sw || y >= sh || width > sw-x || height > sh-y)
+			throw new IllegalArgumentException("region "+x+","+y+" "+width+"x"+height+" is outside of slide bounds "+sw+"x"+sh);
+		this.slide = slide;
+		this.x = x;
+		this.y = y;
+		this.level = level;
+		this.downsample = slide.getLevelDownsample(level);
+		long w = Math.max(1,(long)(width/downsample));
+		long h = Math.max(1,(long)(height/downsample));
+		if(w > Integer.MAX_VALUE || h > Integer.MAX_VALUE || ((w+TILE_SIZE-1)/TILE_SIZE)*((h+TILE_SIZE-1)/TILE_SIZE) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("region is too large");
+		this.width = (int) w;
+		this.height = (int) h;
+	}
+	
+	/**
+	 * get width of exported image in pixels
+	 * @return
+	 */
+	public int getWidth(){
+		return width;
+	}
+	
+	/**
+	 * get height of exported image in pixels
+	 * @return
+	 */
+	public int getHeight(){
+		return height;
+	}
+	
+	/**
+	 * set tile compression, jpeg or deflate
+	 * @param compression
+	 */
+	public void setCompression(String compression){
+		if(!(JPEG.equalsIgnoreCase(compression) || DEFLATE.equalsIgnoreCase(compression)))
+			throw new IllegalArgumentException("unsupported compression "+compression);
+		this.compression = compression.toLowerCase();
+	}
+	
+	/**
+	 * set JPEG quality and chroma subsampling, tiles are always baseline JPEG
+	 * @param options
+	 */
+	public void setEncoderOptions(ImageEncoder.Options options){
+		this.options = new ImageEncoder.Options(options);
+		this.options.setFormat("jpg");
+		this.options.setProgressive(false);
+	}
+	
+	/**
+	 * add reduced resolution levels, until image fits into a single tile
+	 * @param pyramid
+	 */
+	public void setPyramid(boolean pyramid){
+		this.pyramid = pyramid;
+	}
+	
+	/**
+	 * set image description that is saved in the first directory
+	 * @param description
+	 */
+	public void setDescription(String description){
+		this.description = description;
+	}
+	
+	/**
+	 * write BigTIFF file
+	 * @param file
+	 * @param executor - threads that read and compress tiles
+	 * @param threads - max number of threads used by this export
+	 * @throws IOException
+	 */
+	public void write(File file, ExecutorService executor, int threads) throws IOException {
+		// figure out levels
+		LinkedList<Level> levels = new LinkedList<Level>();
+		levels.add(new Level(0));
+		while(pyramid && (levels.getLast().width > TILE_SIZE || levels.getLast().height > TILE_SIZE))
+			levels.add(new Level(levels.size()));
+		
+		Output out = new Output(new BufferedOutputStream(new FileOutputStream(file),64*1024));
+		try{
+			// header, offset of the first directory is filled in at the end
+			out.write(new byte [] {'I','I',43,0,8,0,0,0});
+			long next = out.position;
+			out.writeLong(0);
+			
+			// tiles of all levels
+			for(Level l: levels)
+				writeTiles(out,l,executor,Math.max(1,threads));
+			
+			// chain of directories, one per level
+			for(Level l: levels){
+				long ifd = writeDirectory(out,l);
+				out.patch(next,ifd);
+				next = out.position - 8;
+			}
+		}finally{
+			out.close(file);
+		}
+	}
+	
+	/**
+	 * read, compress and write tiles of a given level in row order,
+	 * only a few tiles are in flight at any time
+	 * @param out
+	 * @param l
+	 * @param executor
+	 * @param threads
+	 * @throws IOException
+	 */
+	private void writeTiles(Output out, Level l, ExecutorService executor, int threads) throws IOException {
+		LinkedList<Future<byte []>> pending = new LinkedList<Future<byte []>>();
+		int count = l.columns*l.rows;
+		int next = 0;
+		try{
+			for(int i=0;i<count;i++){
+				while(next < count && pending.size() < threads*TILES_PER_THREAD)
+					pending.add(executor.submit(createTileTask(l,next++)));
+				byte [] data = getResult(pending.removeFirst());
+				l.offsets[i] = out.position;
+				l.counts[i] = data.length;
+				out.write(data);
+			}
+		}finally{
+			for(Future<byte []> f: pending)
+				f.cancel(true);
+		}
+	}
+	
+	/**
+	 * wait for compressed tile
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	private byte [] getResult(Future<byte []> f) throws IOException {
+		try{
+			return f.get();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while exporting slide "+slide.getName());
+		}catch(ExecutionException ex){
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(""+cause);
+		}
+	}
+	
+	/**
+	 * create task that reads and compresses a tile
+	 * @param l
+	 * @param i - tile index in row order
+	 * @return
+	 */
+	private Callable<byte []> createTileTask(final Level l, final int i){
+		return new Callable<byte []>(){
+			public byte [] call() throws Exception {
+				int tx = (i % l.columns)*TILE_SIZE;
+				int ty = (i / l.columns)*TILE_SIZE;
+				int tw = Math.min(TILE_SIZE,l.width-tx);
+				int th = Math.min(TILE_SIZE,l.height-ty);
+				long sx = x + Math.round(tx*l.downsample);
+				long sy = y + Math.round(ty*l.downsample);
+				
+				// full resolution comes straight from native level
+				BufferedImage img = (l.index == 0)?slide.getLevelRegion(level,sx,sy,tw,th):
+							SlidePyramid.readRegion(slide,sx,sy,l.downsample,tw,th);
+				
+				// edge tiles are padded to full size
+				BufferedImage tile = RasterUtils.createImage(TILE_SIZE,TILE_SIZE);
+				int [] pixels = RasterUtils.getPixels(tile);
+				if(tw < TILE_SIZE || th < TILE_SIZE)
+					Arrays.fill(pixels,BACKGROUND);
+				if(img == null)
+					throw new IOException("unable to read tile of slide "+slide.getName());
+				img.getRGB(0,0,tw,th,pixels,0,TILE_SIZE);
+				return (DEFLATE.equals(compression))?deflate(pixels):ImageEncoder.encode(tile,options);
+			}
+		};
+	}
+	
+	/**
+	 * compress RGB pixels of a tile with horizontal differencing and deflate
+	 * @param pixels
+	 * @return
+	 */
+	private static byte [] deflate(int [] pixels){
+		byte [] data = new byte [pixels.length*3];
+		for(int r=0;r<TILE_SIZE;r++){
+			int prev = 0;
+			for(int c=0, i=r*TILE_SIZE, j=i*3;c<TILE_SIZE;c++,i++,j+=3){
+				int p = pixels[i];
+				data[j]   = (byte)((p >> 16) - (prev >> 16));
+				data[j+1] = (byte)((p >> 8) - (prev >> 8));
+				data[j+2] = (byte)(p - prev);
+				prev = p;
+			}
+		}
+		Deflater deflater = new Deflater();
+		try{
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length/2);
+			byte [] buffer = new byte [16*1024];
+			while(!deflater.finished())
+				out.write(buffer,0,deflater.deflate(buffer));
+			return out.toByteArray();
+		}finally{
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * write values that don't fit into directory entries followed by directory
+	 * @param out
+	 * @param l
+	 * @return offset of the directory
+	 * @throws IOException
+	 */
+	private long writeDirectory(Output out, Level l) throws IOException {
+		boolean jpeg = JPEG.equals(compression);
+		boolean first = l.index == 0;
+		
+		// out of line values, tiles and text can have odd length, 
+		// but values and directories have to start on a word boundary
+		out.align();
+		long offsets = out.position;
+		out.writeLongs(l.offsets);
+		out.align();
+		long counts = out.position;
+		out.writeLongs(l.counts);
+		byte [] text = (first && description != null)?(description+"\0").getBytes("ISO-8859-1"):null;
+		out.align();
+		long textOffset = out.position;
+		if(text != null && text.length > 8)
+			out.write(text);
+		byte [] software = "OpenSlideServer\0".getBytes("ISO-8859-1");
+		out.align();
+		long softwareOffset = out.position;
+		if(first)
+			out.write(software);
+		double resolution = getResolution(l);
+		
+		// entries have to be sorted by tag
+		Directory d = new Directory();
+		d.add(NEW_SUBFILE_TYPE,LONG,1,(first)?0:1);
+		d.add(IMAGE_WIDTH,LONG,1,l.width);
+		d.add(IMAGE_LENGTH,LONG,1,l.height);
+		d.add(BITS_PER_SAMPLE,SHORT,3,shorts(8,8,8));
+		d.add(COMPRESSION,SHORT,1,(jpeg)?7:8);
+		d.add(PHOTOMETRIC,SHORT,1,(jpeg)?6:2);
+		if(text != null)
+			d.add(IMAGE_DESCRIPTION,ASCII,text.length,(text.length > 8)?textOffset:inline(text));
+		d.add(SAMPLES_PER_PIXEL,SHORT,1,3);
+		if(resolution > 0){
+			d.add(X_RESOLUTION,RATIONAL,1,rational(resolution));
+			d.add(Y_RESOLUTION,RATIONAL,1,rational(resolution));
+		}
+		d.add(PLANAR_CONFIGURATION,SHORT,1,1);
+		if(resolution > 0)
+			d.add(RESOLUTION_UNIT,SHORT,1,3);
+		if(first)
+			d.add(SOFTWARE,ASCII,software.length,softwareOffset);
+		if(!jpeg)
+			d.add(PREDICTOR,SHORT,1,2);
+		d.add(TILE_WIDTH,LONG,1,TILE_SIZE);
+		d.add(TILE_LENGTH,LONG,1,TILE_SIZE);
+		d.add(TILE_OFFSETS,LONG8,l.offsets.length,(l.offsets.length > 1)?offsets:l.offsets[0]);
+		d.add(TILE_BYTE_COUNTS,LONG8,l.counts.length,(l.counts.length > 1)?counts:l.counts[0]);
+		if(jpeg){
+			String s = options.getSubsampling();
+			int h = (ImageEncoder.Options.SUBSAMPLING_444.equals(s))?1:2;
+			int v = (ImageEncoder.Options.SUBSAMPLING_420.equals(s))?2:1;
+			d.add(YCBCR_SUBSAMPLING,SHORT,2,shorts(h,v));
+		}
+		
+		out.align();
+		long position = out.position;
+		out.write(d.toByteArray());
+		return position;
+	}
+	
+	/**
+	 * get pixels per centimeter of a level
+	 * @param l
+	 * @return 0 if pixel size is not known
+	 */
+	private double getResolution(Level l){
+		try{
+			// pixel size is in millimeters
+			double mm = Double.parseDouble(slide.getSlideInfo().getProperty("pixel.size"));
+			return (mm > 0)?10/(mm*l.downsample):0;
+		}catch(Exception ex){
+			return 0;
+		}
+	}
+	
+	/**
+	 * pack short values into entry value
+	 * @param values
+	 * @return
+	 */
+	private static long shorts(int ... values){
+		long v = 0;
+		for(int i=0;i<values.length;i++)
+			v |= ((long) values[i] & 0xffff) << (16*i);
+		return v;
+	}
+	
+	/**
+	 * pack up to 8 bytes into entry value
+	 * @param bytes
+	 * @return
+	 */
+	private static long inline(byte [] bytes){
+		long v = 0;
+		for(int i=0;i<bytes.length;i++)
+			v |= ((long) bytes[i] & 0xff) << (8*i);
+		return v;
+	}
+	
+	/**
+	 * pack rational number into entry value
+	 * @param value
+	 * @return
+	 */
+	private static long rational(double value){
+		long denominator = 1000;
+		long numerator = Math.min(0xffffffffL,Math.round(value*denominator));
+		return numerator | (denominator << 32);
+	}
+	
+	/**
+	 * BigTIFF image file directory
+	 */
+	private static class Directory {
+		private final ByteBuffer entries = ByteBuffer.allocate(32*20).order(ByteOrder.LITTLE_ENDIAN);
+		private int count;
+		
+		/**
+		 * add entry, values that fit into 8 bytes are stored in the entry
+		 * @param tag
+		 * @param type
+		 * @param n - number of values
+		 * @param value - value or offset of values
+		 */
+		public void add(int tag, int type, long n, long value){
+			entries.putShort((short) tag);
+			entries.putShort((short) type);
+			entries.putLong(n);
+			entries.putLong(value);
+			count ++;
+		}
+		
+		/**
+		 * get directory with offset of the next directory set to 0
+		 * @return
+		 */
+		public byte [] toByteArray(){
+			ByteBuffer b = ByteBuffer.allocate(8+count*20+8).order(ByteOrder.LITTLE_ENDIAN);
+			b.putLong(count);
+			b.put(entries.array(),0,count*20);
+			b.putLong(0);
+			return b.array();
+		}
+	}
+	
+	/**
+	 * output file that keeps track of its position, 
+	 * offsets are patched when file is closed
+	 */
+	private static class Output {
+		private final OutputStream out;
+		private final LinkedList<long []> patches = new LinkedList<long []>();
+		private long position;
+		
+		public Output(OutputStream out){
+			this.out = out;
+		}
+		
+		public void write(byte [] b) throws IOException {
+			out.write(b);
+			position += b.length;
+		}
+		
+		public void writeLong(long v) throws IOException {
+			write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(v).array());
+		}
+		
+		/**
+		 * pad output to an even position
+		 * @throws IOException
+		 */
+		public void align() throws IOException {
+			if((position & 1) != 0)
+				write(new byte [1]);
+		}
+		
+		/**
+		 * write array of values, single values are stored in directory entry
+		 * @param v
+		 * @throws IOException
+		 */
+		public void writeLongs(long [] v) throws IOException {
+			if(v.length < 2)
+				return;
+			ByteBuffer b = ByteBuffer.allocate(8*v.length).order(ByteOrder.LITTLE_ENDIAN);
+			b.asLongBuffer().put(v);
+			write(b.array());
+		}
+		
+		/**
+		 * overwrite 8 byte value at a given position, when file is closed
+		 * @param position
+		 * @param value
+		 */
+		public void patch(long position, long value){
+			patches.add(new long [] {position,value});
+		}
+		
+		/**
+		 * close stream and apply patches
+		 * @param file
+		 * @throws IOException
+		 */
+		public void close(File file) throws IOException {
+			out.close();
+			if(patches.isEmpty())
+				return;
+			RandomAccessFile raf = new RandomAccessFile(file,"rw");
+			try{
+				for(long [] p: patches){
+					raf.seek(p[0]);
+					raf.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(p[1]).array());
+				}
+			}finally{
+				raf.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ *  in-memory cache of encoded image responses (tiles). 
+ *  The capacity is measured in bytes of encoded data, least recently
+ *  used tiles are evicted when capacity is exceeded. Keys are expected
+ *  to identify the version of the source slide, so that stale tiles
+ *  are never matched once a slide is modified. An optional persistent
+ *  disk tier is consulted on memory misses and receives every new tile
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class TileCache {
+	public static final long DEFAULT_CAPACITY = 256L*1024*1024;
+	//estimated per entry overhead in bytes (map entry, key, array header)
+	private static final int ENTRY_OVERHEAD = 96;
+	
+	private final Map<String,byte []> map;
+	private final DiskTileCache disk, tileStore;
+	private final long capacity;
+	private long size;
+	private long hits, misses, puts, evictions, evictedBytes;
+	
+	/**
+	 * create new tile cache
+	 * @param capacity - max size of cached data in bytes
+	 */
+	public TileCache(long capacity){
+		this(capacity,null);
+	}
+	
+	/**
+	 * create new tile cache backed by a disk cache
+	 * @param capacity - max size of cached data in bytes
+	 * @param disk - persistent tile cache, can be null
+	 */
+	public TileCache(long capacity, DiskTileCache disk){
+		this(capacity,disk,null);
+	}
+	
+	/**
+	 * create new tile cache backed by a disk cache and a store of 
+	 * pre-rendered tiles (pyramids and thumbnails) that are never evicted
+	 * @param capacity - max size of cached data in bytes
+	 * @param disk - persistent tile cache, can be null
+	 * @param store - persistent tile store, can be null
+	 */
+	public TileCache(long capacity, DiskTileCache disk, DiskTileCache store){
+		this.capacity = (capacity > 0)?capacity:DEFAULT_CAPACITY;
+		this.disk = disk;
+		this.tileStore = store;
+		// access ordered map gives us LRU iteration order
+		map = new LinkedHashMap<String,byte []>(1024,0.75f,true);
+	}
+	
+	/**
+	 * get key that uniquely identifies an image response for a given 
+	 * version of a slide file
+	 * @param file - slide file
+	 * @param params - request parameters that effect the response
+	 * @return
+	 */
+	public static String getKey(File file, Object ... params){
+		StringBuffer key = new StringBuffer(file.getAbsolutePath());
+		key.append("|"+file.lastModified()+"|"+file.length());
+		for(Object p: params)
+			key.append("|"+p);
+		return key.toString();
+	}
+	
+	/**
+	 * get tile from cache
+	 * @param key
+	 * @return null if tile is not in cache
+	 */
+	public byte [] get(String key){
+		synchronized(this){
+			byte [] data = map.get(key);
+			if(data != null){
+				hits ++;
+				return data;
+			}
+			misses ++;
+		}
+		// check persistent tiers outside of the lock
+		for(DiskTileCache d: new DiskTileCache [] {tileStore,disk}){
+			byte [] data = (d != null)?d.get(key):null;
+			if(data != null){
+				store(key,data);
+				return data;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * is tile in memory or on disk, 
+	 * this doesn't count as cache access
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key){
+		synchronized(this){
+			if(map.containsKey(key))
+				return true;
+		}
+		return (tileStore != null && tileStore.contains(key)) || (disk != null && disk.contains(key));
+	}
+	
+	/**
+	 * does cache have a tier that survives eviction from memory
+	 * @return
+	 */
+	public boolean isPersistent(){
+		return tileStore != null || disk != null;
+	}
+	
+	/**
+	 * is tile stored on disk, this doesn't count as cache access
+	 * @param key
+	 * @return
+	 */
+	public boolean isStored(String key){
+		return (tileStore != null && tileStore.contains(key)) || (disk != null && disk.contains(key));
+	}
+	
+	/**
+	 * put pre-rendered tile into tile store, or into disk cache if there
+	 * is no store, it only gets into memory once it is requested, so 
+	 * pre-rendering doesn't flush tiles that are in use
+	 * @param key
+	 * @param data
+	 * @return false if there is no persistent tier
+	 */
+	public boolean putStored(String key, byte [] data){
+		DiskTileCache d = (tileStore != null)?tileStore:disk;
+		if(d == null)
+			return false;
+		d.put(key,data);
+		return true;
+	}
+	
+	/**
+	 * put tile into cache, least recently used tiles are 
+	 * evicted if capacity is exceeded
+	 * @param key
+	 * @param data
+	 */
+	public void put(String key, byte [] data){
+		store(key,data);
+		if(disk != null)
+			disk.put(key,data);
+	}
+	
+	/**
+	 * put tile into memory cache
+	 * @param key
+	 * @param data
+	 */
+	private synchronized void store(String key, byte [] data){
+		long sz = getSize(key,data);
+		// don't bother with tiles that would flush the whole cache
+		if(sz > capacity/4)
+			return;
+		byte [] old = map.put(key,data);
+		if(old != null)
+			size -= getSize(key,old);
+		size += sz;
+		puts ++;
+		
+		// evict LRU tiles
+		for(Iterator<Map.Entry<String,byte []>> it = map.entrySet().iterator();size > capacity && it.hasNext();){
+			Map.Entry<String,byte []> e = it.next();
+			long esz = getSize(e.getKey(),e.getValue());
+			it.remove();
+			size -= esz;
+			evictions ++;
+			evictedBytes += esz;
+		}
+	}
+	
+	/**
+	 * get persistent tile cache
+	 * @return null if there is no disk tier
+	 */
+	public DiskTileCache getDiskCache(){
+		return disk;
+	}
+	
+	/**
+	 * get persistent store of pre-rendered tiles
+	 * @return null if there is no tile store
+	 */
+	public DiskTileCache getStore(){
+		return tileStore;
+	}
+	
+	/**
+	 * remove all tiles from memory and close disk cache and tile store
+	 */
+	public void dispose(){
+		synchronized(this){
+			map.clear();
+			size = 0;
+		}
+		if(disk != null)
+			disk.dispose();
+		if(tileStore != null)
+			tileStore.dispose();
+	}
+	
+	/**
+	 * estimated memory used by a cache entry
+	 * @param key
+	 * @param data
+	 * @return
+	 */
+	private long getSize(String key, byte [] data){
+		return ENTRY_OVERHEAD + 2L*key.length() + data.length;
+	}
+	
+	/**
+	 * get cache statistics
+	 * @return
+	 */
+	public synchronized Properties getStatistics(){
+		Properties p = new Properties();
+		p.setProperty("tile.cache.count",""+map.size());
+		p.setProperty("tile.cache.size",""+size);
+		p.setProperty("tile.cache.capacity",""+capacity);
+		p.setProperty("tile.cache.hits",""+hits);
+		p.setProperty("tile.cache.misses",""+misses);
+		p.setProperty("tile.cache.puts",""+puts);
+		p.setProperty("tile.cache.evictions",""+evictions);
+		p.setProperty("tile.cache.evicted.bytes",""+evictedBytes);
+		long total = hits + misses;
+		p.setProperty("tile.cache.hit.ratio",""+((total > 0)?((double)hits)/total:0));
+		if(disk != null)
+			p.putAll(disk.getStatistics());
+		if(tileStore != null)
+			p.putAll(tileStore.getStatistics("tile.store"));
+		return p;
+	}
+}
@@ -0,0 +1,341 @@
+package edu.pitt.dbmi.slideserver;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *  speculatively renders tiles that are likely to be requested next.
+ *  After every region request the neighbouring tiles at the same zoom and 
+ *  the parent and child tiles one zoom level away are queued, tiles ahead in 
+ *  the direction the client is panning go first. Prefetch runs on a single 
+ *  low priority thread and only while the render executor is idle, so it never 
+ *  competes with real requests. The queue is bounded and keeps the most recent
+ *  requests, older candidates are dropped when it is full
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class TilePrefetcher {
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	private static final int MAX_CLIENTS = 1024;
+	private static final int MAX_PREFETCHED = 4096;
+	private static final int MAX_REQUESTS = 64;
+	private static final long IDLE_WAIT = 50;
+	
+	private final Renderer renderer;
+	private final RenderExecutor executor;
+	private final TileCache tileCache;
+	private final int queueSize;
+	private final LinkedBlockingDeque<Tile> queue;
+	private final LinkedBlockingQueue<Request> requested;
+	private final Set<String> queued;
+	private final Map<String,Tile> recent;
+	private final Map<String,Boolean> prefetched;
+	private long requests, rendered, skipped, dropped, hits;
+	private Thread thread;
+	
+	/**
+	 * renders prefetched tiles
+	 */
+	public static interface Renderer {
+		/**
+		 * get tile cache key of a tile
+		 * @param tile
+		 * @return
+		 */
+		public String getKey(Tile tile);
+		
+		/**
+		 * render tile and put it into tile cache
+		 * @param tile
+		 * @param key
+		 * @return false if tile could not be rendered
+		 * @throws Exception
+		 */
+		public boolean render(Tile tile, String key) throws Exception;
+	}
+	
+	/**
+	 * region tile (in absolute coordinates)
+	 */
+	public static class Tile {
+		public final String path;
+		public final int x, y, width, height, size;
+		public final ImageEncoder.Options options;
+		String key;
+		
+		public Tile(String path, int x, int y, int width, int height, int size, ImageEncoder.Options options){
+			this.path = path;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.size = size;
+			this.options = options;
+		}
+		
+		/**
+		 * get tile at a given offset in tiles and scale 
+		 * @param dx - column offset
+		 * @param dy - row offset
+		 * @param scale - 2 for parent, 0.5 for child tile
+		 * @return
+		 */
+		Tile getTile(double dx, double dy, double scale){
+			int w = (int)(width*scale);
+			int h = (int)(height*scale);
+			return new Tile(path,(int)(x+dx*width),(int)(y+dy*height),w,h,size,options);
+		}
+		
+		/**
+		 * is this tile at the same zoom as a given tile
+		 * @param t
+		 * @return
+		 */
+		boolean isSameZoom(Tile t){
+			return width == t.width && height == t.height && size == t.size && path.equals(t.path);
+		}
+	}
+	
+	/**
+	 * region request that tiles around it are queued for
+	 */
+	private static class Request {
+		final Tile tile, last;
+		Request(Tile tile, Tile last){
+			this.tile = tile;
+			this.last = last;
+		}
+	}
+	
+	/**
+	 * create prefetcher
+	 * @param renderer - renders prefetched tiles
+	 * @param executor - render executor, prefetch only runs when it is idle
+	 * @param tileCache - tiles that are already cached are not prefetched
+	 * @param queueSize - max number of queued tiles
+	 */
+	public TilePrefetcher(Renderer renderer, RenderExecutor executor, TileCache tileCache, int queueSize){
+		this.renderer = renderer;
+		this.executor = executor;
+		this.tileCache = tileCache;
+		this.queueSize = (queueSize > 0)?queueSize:DEFAULT_QUEUE_SIZE;
+		queue = new LinkedBlockingDeque<Tile>(this.queueSize);
+		requested = new LinkedBlockingQueue<Request>(MAX_REQUESTS);
+		queued = new HashSet<String>();
+		recent = new LinkedHashMap<String,Tile>(16,0.75f,true){
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String,Tile> eldest) {
+				return size() > MAX_CLIENTS;
+			}
+		};
+		prefetched = new LinkedHashMap<String,Boolean>(16,0.75f,true){
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+				return size() > MAX_PREFETCHED;
+			}
+		};
+		thread = new Thread(new Runnable(){
+			public void run() {
+				prefetch();
+			}
+		},"TilePrefetcher");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	/**
+	 * record region request, tiles around it are queued by prefetch
+	 * thread, so that request thread doesn't wait for cache lookups
+	 * @param client - client identifier
+	 * @param tile - requested tile
+	 * @param key - tile cache key of requested tile
+	 */
+	public void request(String client, Tile tile, String key){
+		Request r;
+		synchronized(this){
+			requests ++;
+			if(prefetched.remove(key) != null)
+				hits ++;
+			r = new Request(tile,recent.put(client+"|"+tile.path,tile));
+		}
+		// older requests are less relevant
+		while(!requested.offer(r))
+			requested.poll();
+	}
+	
+	/**
+	 * queue tiles around requested tile
+	 * @param r
+	 */
+	private void expand(Request r){
+		Tile tile = r.tile, last = r.last;
+		
+		// queue is LIFO, so least likely tiles are queued first
+		// children, parent and then neighbours at the same zoom
+		offer(tile.getTile(0,0,0.5));
+		offer(tile.getTile(0.5,0,0.5));
+		offer(tile.getTile(0,0.5,0.5));
+		offer(tile.getTile(0.5,0.5,0.5));
+		offer(getParent(tile));
+		for(int dy=-1;dy<=1;dy++){
+			for(int dx=-1;dx<=1;dx++){
+				if(dx != 0 || dy != 0)
+					offer(tile.getTile(dx,dy,1));
+			}
+		}
+		
+		// tiles ahead in panning direction
+		if(last != null && tile.isSameZoom(last)){
+			int dx = Integer.signum(tile.x - last.x);
+			int dy = Integer.signum(tile.y - last.y);
+			if(dx != 0 || dy != 0){
+				offer(tile.getTile(2*dx,2*dy,1));
+				offer(tile.getTile(dx,dy,1));
+			}
+		}
+	}
+	
+	/**
+	 * get tile one zoom level out that contains a given tile,
+	 * aligned to the grid of the parent level
+	 * @param tile
+	 * @return
+	 */
+	private Tile getParent(Tile tile){
+		int w = 2*tile.width;
+		int h = 2*tile.height;
+		return new Tile(tile.path,tile.x-(tile.x % w),tile.y-(tile.y % h),w,h,tile.size,tile.options);
+	}
+	
+	/**
+	 * queue tile for prefetch, unless it is cached or already queued
+	 * @param tile
+	 */
+	private void offer(Tile tile){
+		if(tile.x < 0 || tile.y < 0 || tile.width <= 0 || tile.height <= 0)
+			return;
+		tile.key = renderer.getKey(tile);
+		boolean cached = tileCache.contains(tile.key);
+		synchronized(this){
+			if(cached || queued.contains(tile.key)){
+				skipped ++;
+				return;
+			}
+			// drop the oldest tile to make room
+			if(queue.remainingCapacity() == 0){
+				Tile old = queue.pollLast();
+				if(old != null){
+					queued.remove(old.key);
+					dropped ++;
+				}
+			}
+			if(queue.offerFirst(tile))
+				queued.add(tile.key);
+		}
+	}
+	
+	/**
+	 * prefetch loop
+	 */
+	private void prefetch(){
+		while(!Thread.currentThread().isInterrupted()){
+			try{
+				// new requests put their tiles in front of the queue,
+				// wait for one when there is nothing left to prefetch
+				Request r = requested.poll();
+				if(r == null && queue.isEmpty())
+					r = requested.take();
+				if(r != null){
+					expand(r);
+					continue;
+				}
+				Tile tile = queue.pollFirst();
+				if(tile == null)
+					continue;
+				
+				// put tile back and wait for real requests to finish,
+				// newer tiles may be queued in front of it meanwhile
+				if(!executor.isIdle()){
+					synchronized(this){
+						if(!queue.offerFirst(tile)){
+							queued.remove(tile.key);
+							dropped ++;
+						}
+					}
+					Thread.sleep(IDLE_WAIT);
+					continue;
+				}
+				
+				synchronized(this){
+					queued.remove(tile.key);
+				}
+				if(tileCache.contains(tile.key)){
+					synchronized(this){
+						skipped ++;
+					}
+				}else if(renderer.render(tile,tile.key)){
+					synchronized(this){
+						rendered ++;
+						prefetched.put(tile.key,Boolean.TRUE);
+					}
+				}
+			}catch(InterruptedException ex){
+				break;
+			}catch(Exception ex){
+				// tile may be out of bounds or slide no longer open
+			}
+		}
+	}
+	
+	/**
+	 * stop prefetch thread
+	 */
+	public void dispose(){
+		thread.interrupt();
+		requested.clear();
+		queue.clear();
+	}
+	
+	/**
+	 * get prefetch statistics
+	 * @return
+	 */
+	public synchronized Properties getStatistics(){
+		Properties p = new Properties();
+		p.setProperty("prefetch.queued",""+queue.size());
+		p.setProperty("prefetch.queue.capacity",""+queueSize);
+		p.setProperty("prefetch.requests",""+requests);
+		p.setProperty("prefetch.rendered",""+rendered);
+		p.setProperty("prefetch.skipped",""+skipped);
+		p.setProperty("prefetch.dropped",""+dropped);
+		p.setProperty("prefetch.hits",""+hits);
+		return p;
+	}
+}
@@ -25,6 +25,7 @@ import javax.swing.Timer;
 //import edu.cmu.cs.openslide.OpenSlide;
 import org.openslide.AssociatedImage;
 import org.openslide.OpenSlide;
+import edu.pitt.dbmi.slideserver.Resampler;
 import edu.pitt.slideviewer.*;
 import edu.pitt.slideviewer.policy.DiscreteScalePolicy;
 import edu.pitt.slideviewer.qview.QuickNavigator;
@@ -512,32 +513,7 @@ public class LocalOpenSlideConnection extends TileConnectionManager implements C
 	 * @return
 	 */
 	private BufferedImage scaleImage(BufferedImage src, int size) {
-		if (src == null || size <= 0)
-			return src;
-
-		int w = src.getWidth();
-		int h = src.getHeight();
-		// figure out aspect ratio
-		if (w > h) {
-			// if size is the same, don't bother
-			if (w == size)
-				return src;
-
-			h = (size * h) / w;
-			w = size;
-		} else {
-			// if size is the same, don't bother
-			if (h == size)
-				return src;
-
-			w = (size * w) / h;
-			h = size;
-		}
-		BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = dst.createGraphics();
-		g.drawImage(src.getScaledInstance(w, h, Image.SCALE_SMOOTH), 0,0, null);
-		g.dispose();
-		return dst;
+		return Resampler.scaleToSize(src, size);
 	}
 	
 	
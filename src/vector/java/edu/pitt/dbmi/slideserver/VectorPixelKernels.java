@@ -0,0 +1,89 @@
+package edu.pitt.dbmi.slideserver;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ *  SIMD pixel kernels that use incubating Vector API (JDK 16+). This class
+ *  is built by the optional compile_VectorKernels target and is loaded by 
+ *  PixelKernels at startup, when the JVM runs with 
+ *  --add-modules jdk.incubator.vector. Tails that don't fill a whole 
+ *  vector are done by scalar code. 2x2 reduction is inherited from scalar
+ *  kernels, lane shuffles it needs are slower then plain loops on JDK 17
+ *
+ *  OpenSlideServer, is a digital slide image server that wrapps
+ *  OpenSlide library (http://openslide.cs.cmu.edu/)
+ *
+ *  Copyright (c) 2007-2008 University of Pittsburgh
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2.
+ *
+ *  OpenSlideServer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSlideServer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Linking OpenSlideServer statically or dynamically with other modules is
+ *  making a combined work based on OpenSlideServer. Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ */
+public class VectorPixelKernels extends PixelKernels {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	// bytes with as many lanes as ints
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(INTS.length()*8));
+	
+	public String getName(){
+		return "vector "+INTS.vectorBitSize()+" bit";
+	}
+	
+	public void compositeOnWhite(int [] argb, int offset, int length){
+		int end = offset + length;
+		int i = offset;
+		for(int bound = offset + INTS.loopBound(length); i < bound; i += INTS.length()){
+			IntVector p = IntVector.fromArray(INTS,argb,i);
+			IntVector t = p.lanewise(VectorOperators.LSHR,24).neg().add(255);
+			p.or(0xff000000).add(t.mul(0x010101)).intoArray(argb,i);
+		}
+		super.compositeOnWhite(argb,i,end-i);
+	}
+	
+	/**
+	 * get one channel of packed pixels
+	 * @return
+	 */
+	private static IntVector channel(IntVector p, int shift){
+		return p.lanewise(VectorOperators.LSHR,shift).and(0xff);
+	}
+	
+	public void toYCbCr(int [] rgb, int offset, int length, byte [] y, byte [] cb, byte [] cr, int dstOffset){
+		int i = 0;
+		for(int bound = INTS.loopBound(length); i < bound; i += INTS.length()){
+			IntVector p = IntVector.fromArray(INTS,rgb,offset+i);
+			IntVector r = channel(p,16), g = channel(p,8), b = channel(p,0);
+			store(r.mul(19595).add(g.mul(38470)).add(b.mul(7471)).add(32768),y,dstOffset+i);
+			store(r.mul(-11059).add(g.mul(-21709)).add(b.mul(32768)).add(8421375),cb,dstOffset+i);
+			store(r.mul(32768).add(g.mul(-27439)).add(b.mul(-5329)).add(8421375),cr,dstOffset+i);
+		}
+		super.toYCbCr(rgb,offset+i,length-i,y,cb,cr,dstOffset+i);
+	}
+	
+	/**
+	 * store 16.16 fixed point values as bytes
+	 * @param v
+	 * @param dst
+	 * @param offset
+	 */
+	private static void store(IntVector v, byte [] dst, int offset){
+		((ByteVector) v.lanewise(VectorOperators.ASHR,16).castShape(BYTES,0)).intoArray(dst,offset);
+	}
+}